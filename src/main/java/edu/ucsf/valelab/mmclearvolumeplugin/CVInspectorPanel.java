@@ -32,7 +32,10 @@ import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JLabel;
 import javax.swing.JSeparator;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ChangeEvent;
 
 import net.miginfocom.swing.MigLayout;
@@ -69,6 +72,10 @@ public final class CVInspectorPanel extends InspectorPanel {
    private boolean animating_ = false;
    private final AtomicBoolean attachToNew_ = new AtomicBoolean(false);
    private final CVVideoRecorder recorder_;
+   private final CVSnapshot snapper_ = new CVSnapshot();
+   private MovieExporter exporter_;
+   private final JCheckBox liveModeCheckBox_;
+   private final JCheckBox reduceCheckBox_;
    
    public CVInspectorPanel(Studio studio) {
       super();
@@ -86,7 +93,28 @@ public final class CVInspectorPanel extends InspectorPanel {
          studio.profile().setBoolean(this.getClass(), USE_FOR_ALL, 
                  attachToNewCheckBox.isSelected());
       });
-      super.add(attachToNewCheckBox, "span 4, wrap");
+      super.add(attachToNewCheckBox, "span 4, split 3");
+      
+      liveModeCheckBox_ = new JCheckBox("Live update");
+      liveModeCheckBox_.setToolTipText(
+              "Show planes as they arrive, rather than complete stacks");
+      liveModeCheckBox_.addActionListener((ActionEvent e) -> {
+         if (getViewer() != null) {
+            getViewer().setLiveMode(liveModeCheckBox_.isSelected());
+         }
+      });
+      super.add(liveModeCheckBox_);
+      
+      reduceCheckBox_ = new JCheckBox("8-bit");
+      reduceCheckBox_.setToolTipText("<html>Send 16-bit data to the 3D viewer "
+              + "as 8-bit, using the current contrast settings.<br>"
+              + "Halves memory use. Applies to newly opened viewers.</html>");
+      reduceCheckBox_.addActionListener((ActionEvent e) -> {
+         if (getViewer() != null) {
+            getViewer().setReduceTo8Bit(reduceCheckBox_.isSelected());
+         }
+      });
+      super.add(reduceCheckBox_, "wrap");
       
       super.add(new JSeparator(SwingConstants.HORIZONTAL), "span 4, growx, pushx, wrap");
            
@@ -159,12 +187,13 @@ public final class CVInspectorPanel extends InspectorPanel {
       snapButton.setToolTipText("Snapshot of 3D viewer");
       snapButton.addActionListener( (ActionEvent e) -> {
          if (getViewer() != null) {
-            CVSnapshot snapper = new CVSnapshot();
-            getViewer().attachRecorder(snapper);
+            getViewer().attachRecorder(snapper_);
          }
       });
       super.add(snapButton, "span 4, split 2, center");
       
+      final JButton exportButton = new JButton("Export");
+      
       final JButton recordButton = new JButton("Record"); 
       recordButton.setToolTipText("Record 3D viewer");
       recordButton.setContentAreaFilled(false);
@@ -174,6 +203,7 @@ public final class CVInspectorPanel extends InspectorPanel {
       recordButton.addActionListener((ActionEvent e) -> {
          if (recordButton.getText().equals("Record")) {
             snapButton.setEnabled(false);
+            exportButton.setEnabled(false);
             recordButton.setBackground(Color.red);
             recordButton.setText("Stop Recording");
             if (getViewer() != null) {
@@ -181,6 +211,7 @@ public final class CVInspectorPanel extends InspectorPanel {
             }
          } else {
             snapButton.setEnabled(true);
+            exportButton.setEnabled(true);
             recordButton.setText("Record");
             recordButton.setBackground(Color.green);
             recorder_.stopRecording();
@@ -188,6 +219,43 @@ public final class CVInspectorPanel extends InspectorPanel {
       });
       super.add(recordButton, "wrap");
       
+      final JSpinner rotationSpinner = new JSpinner(
+              new SpinnerNumberModel(0.0, -180.0, 180.0, 1.0));
+      rotationSpinner.setToolTipText("Degrees to rotate between exported frames");
+      exportButton.setToolTipText("<html>Export a movie with exactly one frame "
+              + "per time point, as fast as possible.<br>"
+              + "A single volume is turned around once when rotating.</html>");
+      exportButton.addActionListener((ActionEvent e) -> {
+         if (exporter_ != null) {
+            exporter_.cancel();
+            return;
+         }
+         final CVViewer viewer = getViewer();
+         if (viewer == null) {
+            return;
+         }
+         final int nrT = Math.max(1, 
+                 viewer.getDatastore().getAxisLength(Coords.TIME));
+         final double degrees = ((Number) rotationSpinner.getValue()).doubleValue();
+         final int framesPerTimePoint = (nrT == 1 && degrees != 0.0) ? 
+                 (int) Math.ceil(360.0 / Math.abs(degrees)) : 1;
+         snapButton.setEnabled(false);
+         recordButton.setEnabled(false);
+         exportButton.setText("Stop Export");
+         exporter_ = new MovieExporter(studio_, viewer, recorder_);
+         exporter_.start(viewer.getShownPosition(), 0, nrT - 1, 
+                 framesPerTimePoint, degrees, () -> 
+                 SwingUtilities.invokeLater(() -> {
+                    exporter_ = null;
+                    snapButton.setEnabled(true);
+                    recordButton.setEnabled(true);
+                    exportButton.setText("Export");
+                 }));
+      });
+      super.add(new JLabel("Rotate (\u00B0/frame)"), "span 4, split 3, center");
+      super.add(rotationSpinner);
+      super.add(exportButton, "wrap");
+      
    }
    
    @Override
@@ -213,6 +281,8 @@ public final class CVInspectorPanel extends InspectorPanel {
       // TODO: do we need to unregister the old viewer???
       
       viewer_ = (CVViewer) viewer;
+      liveModeCheckBox_.setSelected(viewer_.getLiveMode());
+      reduceCheckBox_.setSelected(viewer_.getReduceTo8Bit());
       
       // update range sliders with clipped region of current viewer
       float[] clipBox = viewer_.getClipBox();
@@ -255,6 +325,7 @@ public final class CVInspectorPanel extends InspectorPanel {
    public void cleanup() {
       // Let's see when this is called to learn what we should be doing
       System.out.println("InspectorPanel.cleanup called in ClearVolume plugin");
+      snapper_.close();
    }
    
    public CVViewer getViewer() {
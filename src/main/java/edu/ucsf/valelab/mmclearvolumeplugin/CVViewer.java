@@ -26,39 +26,65 @@ import com.jogamp.newt.awt.NewtCanvasAWT;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.jogamp.newt.NewtFactory;
+import com.jogamp.opengl.math.Quaternion;
 import coremem.enums.NativeTypeEnum;
 import coremem.fragmented.FragmentedMemory;
 
 import edu.ucsf.valelab.mmclearvolumeplugin.events.CanvasDrawCompleteEvent;
+import edu.ucsf.valelab.mmclearvolumeplugin.events.ImageIngestDispatcher;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.BrickGrid;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.BrickVolume;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.BufferUtils;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.ChannelLut;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.HistogramEngine;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.PlaneBufferPool;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.PlaneFetchScheduler;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.StackCompletionIndex;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.VolumeCache;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.VolumeDownsampler;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.VolumeKey;
+import edu.ucsf.valelab.mmclearvolumeplugin.volume.VolumePrefetcher;
 
 
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Container;
 import java.awt.Dimension;
+import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowFocusListener;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.swing.JFrame;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 
 import org.micromanager.Studio;
 import org.micromanager.UserProfile;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
-import org.micromanager.data.NewImageEvent;
 import org.micromanager.data.Metadata;
 import org.micromanager.data.SummaryMetadata;
 import org.micromanager.data.internal.DefaultImage;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DisplaySettings;
-import org.micromanager.display.DisplaySettings.ColorMode;
 import org.micromanager.display.DisplayWindow;
 import org.micromanager.display.HistogramData;
 import org.micromanager.display.NewDisplaySettingsEvent;
@@ -74,7 +100,10 @@ import org.micromanager.events.ShutdownCommencingEvent;
  */
 public class CVViewer implements DataViewer {
 
-   private DisplaySettings displaySettings_;
+   // set on the EDT, and by autostretching on the render thread.  Changes 
+   // based on the current settings are made under settingsLock_
+   private volatile DisplaySettings displaySettings_;
+   private final Object settingsLock_ = new Object();
    private final Studio studio_;
    private Datastore store_;
    private DisplayWindow clonedDisplay_;
@@ -85,12 +114,96 @@ public class CVViewer implements DataViewer {
    private Coords.CoordsBuilder coordsBuilder_;
    private boolean open_ = false;
    private int maxValue_;
-   private int currentlyShownTimePoint_;
+   // read from several threads, written under uploadLock_ once set up
+   private volatile int currentlyShownTimePoint_;
+   private int currentlyShownPosition_ = 0;
    private final String XLOC = "XLocation";
    private final String YLOC = "YLocation";
    private final Class<?> ourClass_;
-   private int imgCounter_ = 0;
+   private StackCompletionIndex stackIndex_;
+   // planes per stack from the summary metadata, 0 when not known
+   private int intendedNrZ_ = 0;
    private int activeChannel_ = 0;
+   private int playbackDirection_ = 1;
+   private boolean steppingPositions_ = false;
+   private final VolumePrefetcher prefetcher_;
+   private final VolumeCache volumeCache_;
+   private final String CACHE_SIZE_MB = "VolumeCacheSizeMB";
+   // shared plane of zeros, used in place of missing images
+   private ByteBuffer zeroPlane_;
+   private int planeWidth_, planeHeight_, bytesPerPixel_;
+   // bytes per voxel of the data we hand to the renderer
+   private int rendererBytesPerPixel_;
+   // Reduced precision mode: 16-bit data are sent to the renderer as 8-bit,
+   // mapped through a per-channel look-up table
+   private final String REDUCE_TO_8BIT = "ReduceTo8Bit";
+   private boolean reduceTo8Bit_ = false;
+   private volatile ChannelLut[] luts_;
+   // Live mode: planes are shown as they arrive, rather than per stack
+   private final String LIVE_MODE = "LiveMode";
+   private final String LIVE_UPDATE_INTERVAL_MS = "LiveUpdateIntervalMs";
+   private final Object liveLock_ = new Object();
+   private volatile boolean liveMode_ = false;
+   private volatile boolean liveVolumeStale_ = true;
+   private int liveUpdateIntervalMs_;
+   private ByteBuffer[] liveVolume_;
+   private boolean[] liveDirty_;
+   private long lastLiveUploadNs_ = 0;
+   // Progressive loading: show a downsampled volume first, then refine
+   private final String PROGRESSIVE_LOADING = "ProgressiveLoading";
+   private static final long PROGRESSIVE_THRESHOLD_BYTES = 256L << 20;
+   private static final long COARSE_TARGET_BYTES = 32L << 20;
+   private volatile boolean progressiveLoading_ = true;
+   private final AtomicLong drawGeneration_ = new AtomicLong(0);
+   private final ExecutorService refineExecutor_;
+   // assembles channels in parallel
+   private final ExecutorService assemblyExecutor_;
+   // reads planes in parallel, in the order they were written
+   private final PlaneFetchScheduler planeFetcher_;
+   private static final int NR_IO_THREADS = 4;
+   private final HistogramEngine histogramEngine_;
+   // rate at which histograms of incoming data are sent to the inspector
+   private static final long HISTOGRAM_INTERVAL_MS = 250;
+   private long lastHistogramPostNs_ = 0;
+   private Future<?> refinement_;
+   // Volumes larger than this are shown at a reduced resolution level, 
+   // split in bricks of which only those within the clip box are handed to
+   // the renderer.  The smaller the clip box, the finer the level.
+   private static final long MAX_RENDERER_VOXELS = 512L << 20;
+   // grid of the complete volume, null when it is shown at full resolution
+   private BrickGrid brickGrid_;
+   // grids of all levels used so far, by downsampling factor
+   private final Map<Integer, BrickGrid> brickGrids_ = new HashMap<>();
+   private volatile float[] clipBox_ = {-1f, 1f, -1f, 1f, -1f, 1f};
+   // region of the brick grid that volumes are assembled for
+   private volatile BrickGrid.Region brickRegion_;
+   // region held by the renderer, null when it holds the complete volume
+   private volatile BrickGrid.Region shownRegion_;
+   // Display settings are applied to the renderer at most once per 
+   // frame interval; appliedSettings_ is what the renderer currently shows
+   private static final int SETTINGS_INTERVAL_MS = 33;
+   private final Timer settingsTimer_;
+   private DisplaySettings appliedSettings_;
+   private final Object appearanceLock_ = new Object();
+   // set when the volume we show no longer matches the data
+   private volatile boolean dataDirty_ = true;
+   // Hidden channels are not assembled or uploaded.  We keep track of what
+   // each layer of the renderer holds, so that it can be loaded when shown.
+   // layerVisible_ is replaced, never modified, under appearanceLock_
+   private volatile boolean[] layerVisible_;
+   private VolumeKey[] uploadedKeys_;
+   // Requests to show a volume are handled one at a time on the render 
+   // thread.  Requests that were superseded before we got to them are dropped
+   private final ExecutorService renderExecutor_;
+   private final AtomicLong renderRequest_ = new AtomicLong(0);
+   private Future<Boolean> pendingRender_;
+   private volatile int requestedTimePoint_ = -1;
+   private volatile int requestedPosition_ = -1;
+   // new images are handled in batches
+   private static final long INGEST_WINDOW_MS = 20;
+   private ImageIngestDispatcher ingestDispatcher_;
+   // guards sequences of calls that hand data to the renderer
+   private final Object uploadLock_ = new Object();
    private final Color[] colors = {Color.RED, Color.GREEN, Color.BLUE, Color.MAGENTA,
             Color.PINK, Color.CYAN, Color.YELLOW, Color.ORANGE};
    
@@ -131,9 +244,52 @@ public class CVViewer implements DataViewer {
       int yLoc = profile.getInt(ourClass_, YLOC, 100);
       cvFrame_.setLocation(xLoc, yLoc);
       coordsBuilder_ = studio_.data().getCoordsBuilder();
+      final long cacheBytes = 
+              (long) profile.getInt(ourClass_, CACHE_SIZE_MB, 2048) << 20;
+      volumeCache_ = new VolumeCache(cacheBytes);
+      if (VolumeCache.getSharedMaxBytes() < cacheBytes) {
+         studio_.logs().logMessage("ClearVolume: volume cache limited to " + 
+                 (VolumeCache.getSharedMaxBytes() >> 20) + 
+                 " MB by the direct memory limit");
+      }
+      prefetcher_ = new VolumePrefetcher((int t, int p) -> 
+              assembleVolume(t, p, true, visibleChannels()));
+      liveMode_ = profile.getBoolean(ourClass_, LIVE_MODE, false);
+      progressiveLoading_ = profile.getBoolean(ourClass_, PROGRESSIVE_LOADING, 
+              true);
+      refineExecutor_ = Executors.newSingleThreadExecutor((Runnable r) -> {
+         Thread t = new Thread(r, "ClearVolume volume refinement thread");
+         t.setDaemon(true);
+         return t;
+      });
+      renderExecutor_ = Executors.newSingleThreadExecutor((Runnable r) -> {
+         Thread t = new Thread(r, "ClearVolume render command thread");
+         t.setDaemon(true);
+         return t;
+      });
+      assemblyExecutor_ = Executors.newFixedThreadPool(
+              Math.min(8, Runtime.getRuntime().availableProcessors()), 
+              (Runnable r) -> {
+         Thread t = new Thread(r, "ClearVolume channel assembly thread");
+         t.setDaemon(true);
+         return t;
+      });
+      settingsTimer_ = new Timer(SETTINGS_INTERVAL_MS, 
+              (ActionEvent e) -> applyDisplaySettings());
+      settingsTimer_.setRepeats(false);
+      planeFetcher_ = store_ == null ? null : 
+              new PlaneFetchScheduler(studio_, store_, NR_IO_THREADS);
+      histogramEngine_ = new HistogramEngine((int t, int p, int ch) -> 
+              planeFetcher_.fetch(t, p, new int[] {ch}, 
+                      store_.getAxisLength(Coords.Z))[0], 
+              assemblyExecutor_, 
+              Math.min(8, Runtime.getRuntime().availableProcessors()));
+      liveUpdateIntervalMs_ = profile.getInt(ourClass_, LIVE_UPDATE_INTERVAL_MS, 
+              200);
       
       if (store_ == null) {
          studio_.logs().showMessage("No data set open");
+         volumeCache_.close();
          return;
       }
       
@@ -143,23 +299,34 @@ public class CVViewer implements DataViewer {
 
       // check if we have all z slices in the first time point
       // if not, rely on the onNewImage function to initialize the renderer
-      Coords zStackCoords = studio_.data().getCoordsBuilder().time(0).build();
-      final int nrImages = store_.getImagesMatching(zStackCoords).size();
       currentlyShownTimePoint_ = -1; // set to make sure the first volume will be drawn
       Coords intendedDimensions = store_.getSummaryMetadata().getIntendedDimensions();
+      if (intendedDimensions != null) {
+         intendedNrZ_ = intendedDimensions.getZ();
+         stackIndex_ = new StackCompletionIndex(intendedDimensions.getChannel(),
+                 intendedDimensions.getZ());
+      } else {
+         stackIndex_ = new StackCompletionIndex(
+                 store_.getAxisLength(Coords.CHANNEL), 
+                 store_.getAxisLength(Coords.Z));
+      }
+      // we may be opened mid-acquisition, so count every plane stored so far
+      for (Coords c : store_.getUnorderedImageCoords()) {
+         stackIndex_.add(c.getTime(), Math.max(0, c.getStagePosition()), 
+                 c.getChannel(), c.getZ());
+      }
       if (store_.getIsFrozen()) {
-          initializeRenderer(0);
-      } else if (intendedDimensions != null && 
-              nrImages >= intendedDimensions.getChannel() * intendedDimensions.getZ()) {
-         initializeRenderer(0);
+          initializeRenderer(0, 0);
+      } else if (intendedDimensions != null && stackIndex_.isComplete(0, 0)) {
+         initializeRenderer(0, 0);
       } else if (intendedDimensions == null) {
-         initializeRenderer(0);
+         initializeRenderer(0, 0);
       }
 
 
    }
    
-   private void initializeRenderer(int timePoint) {
+   private void initializeRenderer(int timePoint, int position) {
 
       final double preferredGamma = 0.5; 
       final int min = 0;
@@ -236,17 +403,30 @@ public class CVViewer implements DataViewer {
               build();
 
       Image randomImage = store_.getAnyImage();
+      final int nrZ = store_.getAxisLength(Coords.Z);
+      final int levelFactor = BrickGrid.levelFor(randomImage.getWidth(), 
+              randomImage.getHeight(), nrZ, MAX_RENDERER_VOXELS);
+      if (levelFactor > 1) {
+         brickGrid_ = new BrickGrid(randomImage.getWidth(), 
+                 randomImage.getHeight(), nrZ, levelFactor, nrCh);
+         brickGrids_.put(levelFactor, brickGrid_);
+         brickRegion_ = brickGrid_.getRegion(clipBox_);
+         studio_.logs().logMessage("ClearVolume: volume too large, showing it " +
+                 levelFactor + " times reduced");
+      }
             // creates renderer:
       NativeTypeEnum nte = NativeTypeEnum.UnsignedShort;
-      if (randomImage.getBytesPerPixel() == 1) {
+      reduceTo8Bit_ = randomImage.getBytesPerPixel() == 2 && 
+              studio_.profile().getBoolean(ourClass_, REDUCE_TO_8BIT, false);
+      if (randomImage.getBytesPerPixel() == 1 || reduceTo8Bit_) {
          nte = NativeTypeEnum.UnsignedByte;
       }
       
       clearVolumeRenderer_
               = ClearVolumeRendererFactory.newOpenCLRenderer(
                       name_,
-                      randomImage.getWidth(),
-                      randomImage.getHeight(),
+                      VolumeDownsampler.reducedSize(randomImage.getWidth(), levelFactor),
+                      VolumeDownsampler.reducedSize(randomImage.getHeight(), levelFactor),
                       nte,
                       768,
                       768,
@@ -271,10 +451,20 @@ public class CVViewer implements DataViewer {
 
       clearVolumeRenderer_.setTransferFunction(TransferFunctions.getDefault());
 
+      planeWidth_ = randomImage.getWidth();
+      planeHeight_ = randomImage.getHeight();
+      bytesPerPixel_ = randomImage.getBytesPerPixel();
+      rendererBytesPerPixel_ = reduceTo8Bit_ ? 1 : bytesPerPixel_;
+      zeroPlane_ = PlaneBufferPool.getInstance().acquireZeroPlane(
+              planeWidth_, planeHeight_, rendererBytesPerPixel_);
+      layerVisible_ = new boolean[nrCh];
+      Arrays.fill(layerVisible_, true);
+      uploadedKeys_ = new VolumeKey[nrCh];
              
-      drawVolume(timePoint);
+      drawVolume(timePoint, position);
       displayBus_.post(new CanvasDrawCompleteEvent());
       currentlyShownTimePoint_ = timePoint;
+      currentlyShownPosition_ = position;
 
       // Multi-Pass rendering is active by default but causes bugs in the display
       clearVolumeRenderer_.toggleAdaptiveLOD();
@@ -296,9 +486,11 @@ public class CVViewer implements DataViewer {
    public void register() {
 
       displayBus_.register(this);
-      store_.registerForEvents(this);
-      studio_.getDisplayManager().addViewer(this);
       studio_.events().registerForEvents(this);
+      ingestDispatcher_ = new ImageIngestDispatcher(studio_, store_, 
+              INGEST_WINDOW_MS);
+      ingestDispatcher_.addListener(this::onNewImages);
+      studio_.getDisplayManager().addViewer(this);
                   
       // Ensure there are histograms for our display.
       if (open_) {
@@ -342,97 +534,281 @@ public class CVViewer implements DataViewer {
       profile.setInt(ourClass_, YLOC, cvFrame_.getY());
       studio_.getDisplayManager().removeViewer(this);
       displayBus_.unregister(this);
-      store_.unregisterForEvents(this);
+      ingestDispatcher_.close();
       studio_.events().unregisterForEvents(this);
+      settingsTimer_.stop();
+      renderRequest_.incrementAndGet();
+      renderExecutor_.shutdown();
+      prefetcher_.shutdown();
+      drawGeneration_.incrementAndGet();
+      refineExecutor_.shutdown();
+      assemblyExecutor_.shutdown();
+      planeFetcher_.shutdown();
+      studio_.logs().logMessage(volumeCache_.toString());
+      synchronized (liveLock_) {
+         liveVolume_ = null;
+      }
+      volumeCache_.close();
+      histogramEngine_.clear();
+      if (zeroPlane_ != null) {
+         PlaneBufferPool.getInstance().releaseZeroPlane(
+                 planeWidth_, planeHeight_, rendererBytesPerPixel_);
+         zeroPlane_ = null;
+      }
       clearVolumeRenderer_.close();
       cvFrame_.dispose();
       open_ = false;
    }
 
-   private void setOneChannelVisible(int chToBeVisible) {
+   /**
+    * @return channels that were hidden and are now shown
+    */
+   private List<Integer> setOneChannelVisible(int chToBeVisible) {
+      List<Integer> shown = new ArrayList<>();
       for (int ch = 0; ch < store_.getAxisLength(Coords.CHANNEL); ch++) {
          boolean setVisible = false;
          if (ch == chToBeVisible) {
             setVisible = true;
          }
-         clearVolumeRenderer_.setLayerVisible(ch, setVisible);
+         if (setLayerVisible(ch, setVisible)) {
+            shown.add(ch);
+         }
       }
+      return shown;
    }
    
-   private void setAllChannelsVisible() {
+   /**
+    * @return channels that were hidden and are now shown
+    */
+   private List<Integer> setAllChannelsVisible() {
+      List<Integer> shown = new ArrayList<>();
       for (int ch = 0; ch < store_.getAxisLength(Coords.CHANNEL); ch++) {
-         clearVolumeRenderer_.setLayerVisible(ch, true);
+         if (setLayerVisible(ch, true)) {
+            shown.add(ch);
+         }
+      }
+      return shown;
+   }
+   
+   /**
+    * Shows or hides a layer of the renderer.  Channels that are shown again
+    * should be handed to loadStaleChannels, once the caller no longer holds 
+    * appearanceLock_.
+    * @return true if the layer was hidden and is now shown
+    */
+   private boolean setLayerVisible(final int ch, final boolean visible) {
+      clearVolumeRenderer_.setLayerVisible(ch, visible);
+      // the EDT and the render thread both get here, so copy and replace 
+      // under the lock, or one could undo the other's change
+      synchronized (appearanceLock_) {
+         final boolean[] layerVisible = layerVisible_.clone();
+         final boolean wasVisible = layerVisible[ch];
+         layerVisible[ch] = visible;
+         layerVisible_ = layerVisible;
+         return visible && !wasVisible;
+      }
+   }
+   
+   /**
+    * Loads, in the background, the given layers that do not hold the volume
+    * of the current time point and position (since they were hidden when it
+    * was drawn).  Takes uploadLock_, so callers should not hold 
+    * appearanceLock_, which is taken while holding uploadLock_.
+    * @param channels channels that were just made visible
+    */
+   private void loadStaleChannels(final List<Integer> channels) {
+      for (int ch : channels) {
+         VolumeKey uploaded;
+         synchronized (uploadLock_) {
+            uploaded = uploadedKeys_[ch];
+         }
+         if (!new VolumeKey(currentlyShownTimePoint_, currentlyShownPosition_, 
+                 ch).equals(uploaded)) {
+            loadChannel(ch);
+         }
+      }
+   }
+   
+   private boolean[] visibleChannels() {
+      return layerVisible_.clone();
+   }
+   
+   /**
+    * Assembles (most likely from the cache) and uploads a single channel of
+    * the volume we show, unless another volume is drawn in the meantime, 
+    * which will then include this channel.
+    */
+   private void loadChannel(final int ch) {
+      final long generation = drawGeneration_.get();
+      final int timePoint = currentlyShownTimePoint_;
+      final int position = currentlyShownPosition_;
+      if (refineExecutor_.isShutdown()) {
+         return;
       }
+      refineExecutor_.submit(() -> {
+         if (generation != drawGeneration_.get()) {
+            return;
+         }
+         boolean[] wanted = new boolean[layerVisible_.length];
+         wanted[ch] = true;
+         FragmentedMemory[] volume = assembleVolume(timePoint, position, 
+                 false, wanted);
+         synchronized (uploadLock_) {
+            if (generation != drawGeneration_.get()) {
+               return;
+            }
+            clearVolumeRenderer_.setVolumeDataUpdateAllowed(false);
+            uploadChannel(ch, volume[ch], 1);
+            uploadedKeys_[ch] = new VolumeKey(timePoint, position, ch);
+            clearVolumeRenderer_.setVolumeDataUpdateAllowed(true);
+            if (!clearVolumeRenderer_.waitToFinishAllDataBufferCopy(2, 
+                    TimeUnit.SECONDS)) {
+               studio_.logs().logError("ClearVolume timed out after 2 seconds");
+            }
+         }
+      });
    }
 
    /**
-    * There was an update to the display settings, so update the display
-    * of the image to reflect the change.  Only change variables that actually
-    * changed
+    * There was an update to the display settings.  The inspector can send 
+    * these many times per second, so we only remember the new settings here,
+    * and update the renderer at most once per frame interval with the net
+    * change.
     * @param ds New display settings 
     */
    @Override
    public void setDisplaySettings(DisplaySettings ds) {
-      if (displaySettings_.getChannelColorMode() != ds.getChannelColorMode()) {
-         if (ds.getChannelColorMode() == DisplaySettings.ColorMode.COMPOSITE) {
-            setAllChannelsVisible();
-         } else {
-            setOneChannelVisible(activeChannel_); // todo: get the channel selected in the slider
-         }
-      }
-      for (int ch = 0; ch < store_.getAxisLength(Coords.CHANNEL); ch++ ) {
-         if ( !Objects.equals(displaySettings_.getSafeIsVisible(ch, true), 
-                 ds.getSafeIsVisible(ch, true)) ) {
-            clearVolumeRenderer_.setLayerVisible(ch, ds.getSafeIsVisible(ch, true) );
-         }
-         Color nc = ds.getChannelColors()[ch];
-         if (ds.getChannelColorMode() == DisplaySettings.ColorMode.GRAYSCALE) {
-            nc = Color.WHITE;
-         }
-         if (displaySettings_.getChannelColors()[ch] != nc || 
-                 displaySettings_.getChannelColorMode() != ds.getChannelColorMode() ) {
-            clearVolumeRenderer_.setTransferFunction(ch, getGradientForColor(nc));
-         }
-         if (!Objects.equals 
-               (displaySettings_.getChannelContrastSettings()[ch].getContrastMaxes()[0], 
-               ds.getChannelContrastSettings()[ch].getContrastMaxes()[0])  ||
-             !Objects.equals
-               (displaySettings_.getChannelContrastSettings()[ch].getContrastMins()[0], 
-               ds.getChannelContrastSettings()[ch].getContrastMins()[0]) )  {
-            float max = (float) ds.getChannelContrastSettings()[ch].getContrastMaxes()[0] / 
-                         (float) maxValue_; 
-            float min = (float) ds.getChannelContrastSettings()[ch].getContrastMins()[0] / 
-                         (float) maxValue_;
-            
-            // System.out.println("Max was: " + max);
-            clearVolumeRenderer_.setTransferFunctionRange(ch, min, max);
-         }
-         if (!Objects.equals 
-               (displaySettings_.getChannelContrastSettings()[ch].getContrastGammas(), 
-                ds.getChannelContrastSettings()[ch].getContrastGammas()) )  {
-            clearVolumeRenderer_.setGamma(ch,
-                    ds.getChannelContrastSettings()[ch].getContrastGammas()[0]);
-         }
+      synchronized (settingsLock_) {
+         displaySettings_ = ds;
       }
-      
-      // Autostretch if set
-      if (! Objects.equals( ds.getShouldAutostretch(), 
-              displaySettings_.getShouldAutostretch()) || 
-          ! Objects.equals( ds.getExtremaPercentage(), 
-                  displaySettings_.getExtremaPercentage()) ) {
-         if (ds.getShouldAutostretch()) {
-            autostretch();
-            drawVolume(currentlyShownTimePoint_);
-            displayBus_.post(new CanvasDrawCompleteEvent());
-         }
+      if (!settingsTimer_.isRunning()) {
+         settingsTimer_.start();
       }
-      
-      // replace our reference to the display settings with the new one
-      displaySettings_ = ds;
-      
       // Needed to update the Inspector window
       displayBus_.post(new NewDisplaySettingsEvent(displaySettings_, this));
    }
+   
+   /**
+    * Brings the renderer in line with the latest display settings.  
+    * Contrast, colors and gamma only need the appearance path.  Voxel data 
+    * are only uploaded again when they changed, which in reduced precision 
+    * mode happens when contrast changes need new look-up tables.  
+    * Runs on the EDT.  Autostretching may have to read the whole volume 
+    * when its histogram is no longer cached, so that is done on the render
+    * thread.
+    */
+   private void applyDisplaySettings() {
+      final DisplaySettings applied = appliedSettings_;
+      final DisplaySettings ds = displaySettings_;
+      if (clearVolumeRenderer_ == null || applied == null || applied == ds) {
+         return;
+      }
+      if ((! Objects.equals( ds.getShouldAutostretch(), 
+              applied.getShouldAutostretch()) || 
+          ! Objects.equals( ds.getExtremaPercentage(), 
+                  applied.getExtremaPercentage()) ) && 
+              ds.getShouldAutostretch()) {
+         final int timePoint = currentlyShownTimePoint_;
+         final int position = currentlyShownPosition_;
+         try {
+            renderExecutor_.submit(() -> {
+               autostretch(timePoint, position);
+               applyContrastAndAppearance();
+            });
+         } catch (RejectedExecutionException ree) {
+            // we are closing
+         }
+         return;
+      }
+      applyContrastAndAppearance();
+   }
+   
+   /**
+    * Uploads the volume again when the contrast needs new look-up tables, 
+    * otherwise only updates its appearance.
+    */
+   private void applyContrastAndAppearance() {
+      if (reduceTo8Bit_ && updateLuts()) {
+         showVolume(requestedTimePoint_, requestedPosition_);
+      } else {
+         applyAppearance();
+      }
+   }
+   
+   /**
+    * Appearance path: sets transfer functions, their ranges, gamma, and 
+    * layer visibility from the display settings.  Only changes variables 
+    * that actually changed since they were last applied, or everything 
+    * when nothing was applied yet.
+    */
+   private void applyAppearance() {
+      // channels made visible, loaded once we released appearanceLock_
+      final List<Integer> shown = new ArrayList<>();
+      synchronized (appearanceLock_) {
+         final int nrCh = store_.getAxisLength(Coords.CHANNEL);
+         // HACK: on occassion we get null colors, correct that problem here
+         synchronized (settingsLock_) {
+            Color[] chColors = displaySettings_.getChannelColors();
+            for (int ch = 0; ch < nrCh; ch++) {
+               if (chColors[ch] == null) {
+                  chColors[ch] = colors[ch];
+                  displaySettings_ = displaySettings_.copy().channelColors(chColors).build();
+               }
+            }
+         }
+         final DisplaySettings applied = appliedSettings_;
+         final DisplaySettings ds = displaySettings_;
+         if (applied == ds) {
+            return;
+         }
+         final boolean all = applied == null;
+         if (!all && applied.getChannelColorMode() != ds.getChannelColorMode()) {
+            if (ds.getChannelColorMode() == DisplaySettings.ColorMode.COMPOSITE) {
+               shown.addAll(setAllChannelsVisible());
+            } else {
+               shown.addAll(setOneChannelVisible(activeChannel_)); // todo: get the channel selected in the slider
+            }
+         }
+         for (int ch = 0; ch < nrCh; ch++ ) {
+            if (!all && !Objects.equals(applied.getSafeIsVisible(ch, true), 
+                    ds.getSafeIsVisible(ch, true)) ) {
+               if (setLayerVisible(ch, ds.getSafeIsVisible(ch, true))) {
+                  shown.add(ch);
+               }
+            }
+            Color nc = ds.getChannelColors()[ch];
+            if (ds.getChannelColorMode() == DisplaySettings.ColorMode.GRAYSCALE) {
+               nc = Color.WHITE;
+            }
+            if (all || applied.getChannelColors()[ch] != nc || 
+                    applied.getChannelColorMode() != ds.getChannelColorMode() ) {
+               clearVolumeRenderer_.setTransferFunction(ch, getGradientForColor(nc));
+            }
+            try {
+               if (all || !Objects.equals 
+                     (applied.getChannelContrastSettings()[ch].getContrastMaxes()[0], 
+                     ds.getChannelContrastSettings()[ch].getContrastMaxes()[0])  ||
+                   !Objects.equals
+                     (applied.getChannelContrastSettings()[ch].getContrastMins()[0], 
+                     ds.getChannelContrastSettings()[ch].getContrastMins()[0]) )  {
+                  setContrastRange(ch, 
+                          ds.getChannelContrastSettings()[ch].getContrastMins()[0], 
+                          ds.getChannelContrastSettings()[ch].getContrastMaxes()[0]);
+               }
+               Double[] contrastGammas = ds.getChannelContrastSettings()[ch].getContrastGammas();
+               if (contrastGammas != null && (all || !Objects.equals 
+                     (applied.getChannelContrastSettings()[ch].getContrastGammas(), 
+                      contrastGammas)) )  {
+                  clearVolumeRenderer_.setGamma(ch, contrastGammas[0]);
+               }
+            } catch (NullPointerException ex) {
+               studio_.logs().showError(ex);
+            }
+         }
+         appliedSettings_ = ds;
+      }
+      loadStaleChannels(shown);
+   }
 
    @Override
    public DisplaySettings getDisplaySettings() {
@@ -469,35 +845,47 @@ public class CVViewer implements DataViewer {
       // Channel slider position in the ClearVolume panel in the Image Inspector
       activeChannel_ = coords.getChannel();
       if (displaySettings_.getChannelColorMode() != DisplaySettings.ColorMode.COMPOSITE) {
-         setOneChannelVisible(coords.getChannel());
+         loadStaleChannels(setOneChannelVisible(coords.getChannel()));
       }
       clearVolumeRenderer_.setCurrentRenderLayer(coords.getChannel());
-      drawVolume(coords.getTime());
-      displayBus_.post(new CanvasDrawCompleteEvent());
+      // datasets without stage positions have no index for that axis
+      final int position = Math.max(0, coords.getStagePosition());
+      if (dataDirty_ || coords.getTime() != requestedTimePoint_ || 
+              position != requestedPosition_) {
+         // returns right away, CanvasDrawCompleteEvent is posted when done
+         showVolume(coords.getTime(), position);
+      } else {
+         // same volume, for instance only the channel changed
+         applyAppearance();
+         displayBus_.post(new CanvasDrawCompleteEvent());
+      }
    }
 
    @Override
    /**
-    * Assemble all images that are showing in our volume. May need to be updated
-    * for multiple time points in the future
+    * Assemble all images that are showing in our volume. 
     */
    public List<Image> getDisplayedImages() {
       // System.out.println("getDisplayed Images called");
       List<Image> imageList = new ArrayList<>();
       final int nrZ = store_.getAxisLength(Coords.Z);
       final int nrCh = store_.getAxisLength(Coords.CHANNEL);
+      // -1 until the first volume is shown
+      final int timePoint = Math.max(0, currentlyShownTimePoint_);
       for (int ch = 0; ch < nrCh; ch++) {
          /*
          // return the complete stack
          for (int i = 0; i < nrZ; i++) {
-            coordsBuilder_ = coordsBuilder_.z(i).channel(ch).time(0).stagePosition(0);
+            coordsBuilder_ = coordsBuilder_.z(i).channel(ch).time(timePoint).
+                    stagePosition(currentlyShownPosition_);
             Coords coords = coordsBuilder_.build();
             imageList.add(store_.getImage(coords));
          }
          */
 
          // Only return the middle image
-         coordsBuilder_ = coordsBuilder_.z(nrZ / 2).channel(ch).time(0).stagePosition(0);
+         coordsBuilder_ = coordsBuilder_.z(nrZ / 2).channel(ch).time(timePoint).
+                 stagePosition(currentlyShownPosition_);
          Coords coords = coordsBuilder_.build();
          imageList.add(store_.getImage(coords));
 
@@ -552,99 +940,791 @@ public class CVViewer implements DataViewer {
    }
 
    public final void drawVolume(final int timePoint) {
+      drawVolume(timePoint, currentlyShownPosition_);
+   }
+   
+   /**
+    * Shows the volume at the given time point and stage position.
+    * All channels are assembled (in parallel) before any of them is handed 
+    * to the renderer.  The uploads then all happen while volume data updates
+    * are disallowed, so that the renderer switches to the new volume for all 
+    * channels at once.
+    * 
+    * @param timePoint time point to be shown
+    * @param position stage position to be shown
+    */
+   public final void drawVolume(final int timePoint, final int position) {
+      final long request;
+      // same lock as showVolume, so that the request number and the 
+      // requested volume always belong together
+      synchronized (renderExecutor_) {
+         requestedTimePoint_ = timePoint;
+         requestedPosition_ = position;
+         request = renderRequest_.incrementAndGet();
+      }
+      drawVolume(timePoint, position, request, false);
+   }
+   
+   /**
+    * Asks the render thread to show the given volume.  Any earlier request
+    * that was not started yet is cancelled, and one that is being worked on 
+    * will not upload its data.  Posts a CanvasDrawCompleteEvent when the 
+    * volume is shown.
+    * @param timePoint time point to be shown
+    * @param position stage position to be shown
+    * @return Future that completes when the volume was handed to the 
+    *          renderer, or when the request was superseded
+    */
+   public Future<Boolean> showVolume(final int timePoint, final int position) {
+      return showVolume(timePoint, position, false);
+   }
+   
+   /**
+    * As showVolume(timePoint, position), but optionally skips the 
+    * downsampled first pass, so that the volume is at its final resolution 
+    * once the Future completes.  Used when exporting movies.
+    * @param timePoint time point to be shown
+    * @param position stage position to be shown
+    * @param fullResolution true to never show a coarse volume first
+    * @return Future that yields true when the volume was handed to the 
+    *          renderer, and false when the request was superseded
+    */
+   public Future<Boolean> showVolume(final int timePoint, final int position,
+           final boolean fullResolution) {
+      synchronized (renderExecutor_) {
+         requestedTimePoint_ = timePoint;
+         requestedPosition_ = position;
+         final long request = renderRequest_.incrementAndGet();
+         if (pendingRender_ != null) {
+            // no interrupt, that would close the Datastore's FileChannels
+            pendingRender_.cancel(false);
+         }
+         if (renderExecutor_.isShutdown()) {
+            return CompletableFuture.completedFuture(false);
+         }
+         pendingRender_ = renderExecutor_.submit(() -> {
+            if (drawVolume(timePoint, position, request, fullResolution)) {
+               displayBus_.post(new CanvasDrawCompleteEvent());
+               return true;
+            }
+            return false;
+         });
+         return pendingRender_;
+      }
+   }
+   
+   /**
+    * @param request number of the request, the volume is only uploaded 
+    *          when no newer request came in while assembling it
+    * @param fullResolution true to never show a coarse volume first
+    * @return false if the request was superseded and nothing was uploaded
+    */
+   private boolean drawVolume(final int timePoint, final int position, 
+           final long request, final boolean fullResolution) {
       //if (timePoint == currentlyShownTimePoint_)
       //   return; // nothing to do, already showing requested timepoint
-      // create fragmented memory for each stack that needs sending to CV:
-      Image randomImage = store_.getAnyImage();
-      final Metadata metadata = randomImage.getMetadata();
-      final SummaryMetadata summary = store_.getSummaryMetadata();
-      final int nrZ = store_.getAxisLength(Coords.Z);
+      if (request != renderRequest_.get()) {
+         return false;
+      }
       final int nrCh = store_.getAxisLength(Coords.CHANNEL);
+      // invalidates refinements of volumes we showed earlier
+      final long generation = drawGeneration_.incrementAndGet();
+      final boolean stretch = displaySettings_.getShouldAutostretch();
 
-      // long startTime = System.currentTimeMillis();
-      clearVolumeRenderer_.setVolumeDataUpdateAllowed(false);
-      if (displaySettings_.getShouldAutostretch()) {
-         autostretch();
+      // Use the volume assembled in the background if we have it, otherwise
+      // create fragmented memory for each stack that needs sending to CV.
+      // Large volumes that we have not seen before are first shown 
+      // downsampled, and refined in the background
+      // Channels that are hidden are skipped.
+      // Autostretching uses the planes read for the volume, rather than 
+      // reading them a second time.
+      final boolean[] wanted = visibleChannels();
+      FragmentedMemory[] volume = prefetcher_.take(timePoint, position);
+      if (volume != null) {
+         // the prefetcher calculated the histograms while reading
+         if (stretch) {
+            autostretch(timePoint, position);
+         }
+         if (reduceTo8Bit_ && updateLuts()) {
+            // reduced with a table that was just replaced
+            volume = null;
+         }
+      }
+      int factor = 1;
+      if (volume == null) {
+         factor = fullResolution ? 1 : 
+                 coarseFactor(timePoint, position, wanted);
+         if (factor > 1) {
+            // the contrast is updated when the full volume is read
+            if (reduceTo8Bit_) {
+               updateLuts();
+            }
+            volume = assembleCoarseVolume(timePoint, position, factor, wanted);
+         } else {
+            volume = assembleVolume(timePoint, position, false, wanted, true);
+         }
+      } else {
+         // channels that were made visible after prefetching started
+         boolean[] missing = new boolean[nrCh];
+         boolean anyMissing = false;
+         for (int ch = 0; ch < nrCh; ch++) {
+            missing[ch] = wanted[ch] && volume[ch] == null;
+            anyMissing |= missing[ch];
+         }
+         if (anyMissing) {
+            FragmentedMemory[] extra = assembleVolume(timePoint, position, 
+                    false, missing);
+            for (int ch = 0; ch < nrCh; ch++) {
+               if (missing[ch]) {
+                  volume[ch] = extra[ch];
+               }
+            }
+         }
       }
-      for (int ch = 0; ch < nrCh; ch++) {
-         FragmentedMemory fragmentedMemory = new FragmentedMemory();
-         for (int i = 0; i < nrZ; i++) {
-            coordsBuilder_ = coordsBuilder_.z(i).channel(ch).time(timePoint).stagePosition(0);
-            Coords coords = coordsBuilder_.build();
-
-            // Bypass Micro-Manager api to get access to the ByteBuffers
-            DefaultImage image = (DefaultImage) store_.getImage(coords);
 
-            // add the contiguous memory as fragment:
-            if (image != null) {
-               fragmentedMemory.add(image.getPixelBuffer());
+      synchronized (uploadLock_) {
+         if (request != renderRequest_.get()) {
+            // the prefetcher is still good for the newer request
+            return false;
+         }
+         // long startTime = System.currentTimeMillis();
+         clearVolumeRenderer_.setVolumeDataUpdateAllowed(false);
+         dataDirty_ = false;
+         for (int ch = 0; ch < nrCh; ch++) {
+            if (volume[ch] != null) {
+               uploadChannel(ch, volume[ch], factor);
+               uploadedKeys_[ch] = new VolumeKey(timePoint, position, ch);
             } else {
-                // if the image is missing, replace with pixels initialized to 0
-                fragmentedMemory.add(ByteBuffer.allocateDirect(
-                        randomImage.getHeight() * 
-                        randomImage.getWidth() * 
-                        randomImage.getBytesPerPixel() ) );
+               uploadedKeys_[ch] = null;
+            }
+         }
+         applyAppearance();
+         final int nrT = store_.getAxisLength(Coords.TIME);
+         final int nrP = store_.getAxisLength(Coords.STAGE_POSITION);
+         if (currentlyShownTimePoint_ >= 0) {
+            if (timePoint != currentlyShownTimePoint_) {
+               steppingPositions_ = false;
+               playbackDirection_ = stepDirection(
+                       timePoint - currentlyShownTimePoint_, nrT);
+            } else if (position != currentlyShownPosition_) {
+               steppingPositions_ = true;
+               playbackDirection_ = stepDirection(
+                       position - currentlyShownPosition_, nrP);
             }
          }
+         currentlyShownTimePoint_ = timePoint;
+         currentlyShownPosition_ = position;
+         liveVolumeStale_ = true;
+         clearVolumeRenderer_.setVolumeDataUpdateAllowed(true);
 
-         // TODO: correct x and y voxel sizes using aspect ratio
-         double pixelSizeUm = metadata.getPixelSizeUm();
-         if (pixelSizeUm == 0.0) {
-            pixelSizeUm = 1.0;
+         // While the renderer copies and shows this volume, start working 
+         // on the one we will most likely be asked for next
+         if (steppingPositions_ && nrP > 1) {
+            prefetcher_.prefetch(timePoint, 
+                    (position + playbackDirection_ + nrP) % nrP);
+         } else if (nrT > 1) {
+            prefetcher_.prefetch((timePoint + playbackDirection_ + nrT) % nrT, 
+                    position);
          }
-         Double stepSizeUm = summary.getZStepUm();
-         if (stepSizeUm == null || stepSizeUm == 0.0) {
-            stepSizeUm = 1.0;
+
+         // This call used to time out, now appears to work      
+         if (!clearVolumeRenderer_.waitToFinishAllDataBufferCopy(2, TimeUnit.SECONDS)) {
+            studio_.logs().logError("ClearVolume timed out after 2 seconds");
          }
-         
-         // pass data to renderer: (this call takes a long time!)
-         clearVolumeRenderer_.setVolumeDataBuffer(0, 
-                 TimeUnit.SECONDS, 
-                 ch,
-                 fragmentedMemory,
-                 randomImage.getWidth(),
-                 randomImage.getHeight(),
-                 nrZ, 
-                 pixelSizeUm,
-                 pixelSizeUm, 
-                 stepSizeUm);
-
-
-         // Set various display options:
-         // HACK: on occassion we get null colors, correct that problem here
-         Color chColor = displaySettings_.getChannelColors()[ch];
-         if (chColor == null) {
-            chColor = colors[ch];
-            Color[] chColors = displaySettings_.getChannelColors();
-            chColors[ch] = chColor;
-            displaySettings_ = displaySettings_.copy().channelColors(chColors).build();
+      }
+      
+      if (factor > 1) {
+         scheduleRefinement(timePoint, position, generation);
+      }
+      return true;
+   }
+   
+   /**
+    * Decides whether we should first show a downsampled version of the 
+    * requested volume, and if so, by how much to reduce it.
+    * @return downsampling factor, 1 if the full volume should be shown 
+    *          right away
+    */
+   private int coarseFactor(final int timePoint, final int position, 
+           final boolean[] wanted) {
+      final int nrCh = store_.getAxisLength(Coords.CHANNEL);
+      if (!progressiveLoading_) {
+         return 1;
+      }
+      final BrickGrid.Region region = brickGrid_ != null ? brickRegion_ : null;
+      if (region != null && !region.isWhole()) {
+         // a downsampled complete volume does not fit in the region shown
+         return 1;
+      }
+      boolean allCached = true;
+      int nrWanted = 0;
+      for (int ch = 0; ch < nrCh; ch++) {
+         if (wanted[ch]) {
+            nrWanted++;
+            allCached &= volumeCache_.contains(region == null ? 
+                    new VolumeKey(timePoint, position, ch) : 
+                    brickKey(timePoint, position, ch, region));
+         }
+      }
+      if (allCached) {
+         return 1;
+      }
+      final long volumeBytes = (long) planeWidth_ * planeHeight_ * 
+              rendererBytesPerPixel_ * store_.getAxisLength(Coords.Z) * nrWanted;
+      if (volumeBytes < PROGRESSIVE_THRESHOLD_BYTES) {
+         return 1;
+      }
+      final int factor = volumeBytes / 64 <= COARSE_TARGET_BYTES ? 4 : 8;
+      // no point if the bricked volume is reduced as much
+      return factor > levelFactor() ? factor : 1;
+   }
+   
+   /**
+    * Downsampling factor of the volumes we hand to the renderer when 
+    * showing them at "full" resolution.
+    */
+   private int levelFactor() {
+      return brickGrid_ != null ? brickGrid_.getFactor() : 1;
+   }
+   
+   /**
+    * Reads every factor-th plane of every wanted channel, and reduces these 
+    * planes factor times in x and y.
+    */
+   private FragmentedMemory[] assembleCoarseVolume(final int timePoint, 
+           final int position, final int factor, final boolean[] wanted) {
+      final int nrCh = store_.getAxisLength(Coords.CHANNEL);
+      final int nrZ = store_.getAxisLength(Coords.Z);
+      final int depth = VolumeDownsampler.reducedDepth(nrZ, factor);
+      final int coarseWidth = VolumeDownsampler.reducedSize(planeWidth_, factor);
+      final int coarseHeight = VolumeDownsampler.reducedSize(planeHeight_, factor);
+      final long coarsePlaneBytes = 
+              (long) coarseWidth * coarseHeight * rendererBytesPerPixel_;
+      Coords.CoordsBuilder builder = studio_.data().getCoordsBuilder();
+      FragmentedMemory[] volume = new FragmentedMemory[nrCh];
+      final ChannelLut[] luts = luts_;
+      // 16-bit planes are downsampled into a pooled plane, then reduced
+      final PlaneBufferPool pool = PlaneBufferPool.getInstance();
+      final ByteBuffer scratch = reduceTo8Bit_ ? 
+              pool.acquireScratchPlane(coarseWidth, coarseHeight, 
+                      bytesPerPixel_) : null;
+      try {
+         for (int ch = 0; ch < nrCh; ch++) {
+            if (!wanted[ch]) {
+               continue;
+            }
+            ByteBuffer coarse = BufferUtils.allocate(depth * coarsePlaneBytes);
+            for (int i = 0; i < depth; i++) {
+               DefaultImage image = (DefaultImage) store_.getImage(
+                       builder.z(i * factor).channel(ch).time(timePoint).
+                               stagePosition(position).build());
+               coarse.position((int) (i * coarsePlaneBytes));
+               if (image == null) {
+                  continue;
+               }
+               if (scratch == null) {
+                  VolumeDownsampler.downsamplePlane(image.getPixelBuffer(), 
+                          planeWidth_, planeHeight_, factor, coarse);
+               } else {
+                  scratch.clear();
+                  VolumeDownsampler.downsamplePlane(image.getPixelBuffer(), 
+                          planeWidth_, planeHeight_, factor, scratch);
+                  scratch.rewind();
+                  luts[ch].reduce(scratch.asShortBuffer(), coarse);
+               }
+            }
+            coarse.rewind();
+            volume[ch] = new FragmentedMemory();
+            volume[ch].add(coarse);
+         }
+      } finally {
+         if (scratch != null) {
+            pool.releaseScratchPlane(scratch);
+         }
+      }
+      return volume;
+   }
+   
+   /**
+    * Assembles the full resolution volume on the refinement thread, and 
+    * replaces the downsampled volume with it, unless another volume was 
+    * requested in the meantime.
+    */
+   private void scheduleRefinement(final int timePoint, final int position,
+           final long generation) {
+      synchronized (refineExecutor_) {
+         if (refinement_ != null) {
+            // no interrupt, that would close the Datastore's FileChannels
+            refinement_.cancel(false);
          }
-         if (displaySettings_.getChannelColorMode() == ColorMode.GRAYSCALE) {
-            chColor = Color.WHITE;
+         if (refineExecutor_.isShutdown()) {
+            return;
          }
-         clearVolumeRenderer_.setTransferFunction(ch, getGradientForColor(chColor));
+         refinement_ = refineExecutor_.submit(() -> {
+            final int nrCh = store_.getAxisLength(Coords.CHANNEL);
+            if (generation != drawGeneration_.get()) {
+               return;
+            }
+            // the coarse volume was shown with the old contrast settings
+            FragmentedMemory[] volume = assembleVolume(timePoint, position, 
+                    false, visibleChannels(), true);
+            synchronized (uploadLock_) {
+               if (generation != drawGeneration_.get()) {
+                  return;
+               }
+               clearVolumeRenderer_.setVolumeDataUpdateAllowed(false);
+               for (int ch = 0; ch < nrCh; ch++) {
+                  if (volume[ch] != null) {
+                     uploadChannel(ch, volume[ch], 1);
+                     uploadedKeys_[ch] = new VolumeKey(timePoint, position, ch);
+                  }
+               }
+               applyAppearance();
+               clearVolumeRenderer_.setVolumeDataUpdateAllowed(true);
+               if (!clearVolumeRenderer_.waitToFinishAllDataBufferCopy(2, 
+                       TimeUnit.SECONDS)) {
+                  studio_.logs().logError("ClearVolume timed out after 2 seconds");
+               }
+            }
+         });
+      }
+   }
+   
+   /**
+    * Switches progressive (coarse first, then full resolution) loading of 
+    * large volumes on or off.  Remembered in the user profile.
+    * @param progressive true to switch progressive loading on
+    */
+   public void setProgressiveLoading(boolean progressive) {
+      studio_.profile().setBoolean(ourClass_, PROGRESSIVE_LOADING, progressive);
+      progressiveLoading_ = progressive;
+   }
+   
+   /**
+    * Copies a plane into dest, reducing it to 8 bits if a look-up table is 
+    * given.
+    */
+   private static void copyPlane(final Buffer plane, final ByteBuffer dest, 
+           final ChannelLut lut) {
+      if (lut != null && plane instanceof ShortBuffer) {
+         lut.reduce((ShortBuffer) plane, dest);
+      } else {
+         BufferUtils.copy(plane, dest);
+      }
+   }
+   
+   /**
+    * Sets the renderer's transfer function range for a channel.  
+    * In reduced precision mode the range is relative to the channel's 
+    * look-up table rather than to the full pixel range.
+    * @param ch channel
+    * @param min lowest displayed pixel value
+    * @param max highest displayed pixel value
+    */
+   private void setContrastRange(final int ch, final int min, final int max) {
+      final ChannelLut[] luts = luts_;
+      if (reduceTo8Bit_ && luts != null && ch < luts.length && luts[ch] != null) {
+         clearVolumeRenderer_.setTransferFunctionRange(ch, 
+                 luts[ch].normalize(min), luts[ch].normalize(max));
+      } else {
+         clearVolumeRenderer_.setTransferFunctionRange(ch, 
+                 (float) min / (float) maxValue_, (float) max / (float) maxValue_);
+      }
+   }
+   
+   /**
+    * Makes sure that every channel has a look-up table that covers its 
+    * current contrast settings.  Data reduced with a table that is replaced
+    * are dropped from the cache and the prefetcher.
+    * @return true if any table was replaced, in which case the displayed 
+    *          volume needs to be drawn again
+    */
+   private boolean updateLuts() {
+      final int nrCh = store_.getAxisLength(Coords.CHANNEL);
+      ChannelLut[] luts = luts_;
+      if (luts == null || luts.length != nrCh) {
+         luts = new ChannelLut[nrCh];
+      } else {
+         luts = luts.clone();
+      }
+      boolean changed = false;
+      for (int ch = 0; ch < nrCh; ch++) {
+         int min = displaySettings_.getSafeContrastMin(ch, 0, 0);
+         // the default contrast max is maxValue_, one above any pixel value
+         int max = Math.min(maxValue_ - 1, 
+                 displaySettings_.getSafeContrastMax(ch, 0, maxValue_ - 1));
+         if (luts[ch] == null || !luts[ch].covers(min, max)) {
+            luts[ch] = ChannelLut.build(min, max, maxValue_);
+            volumeCache_.removeChannel(ch);
+            changed = true;
+         }
+      }
+      if (changed) {
+         luts_ = luts;
+         prefetcher_.discard();
+         dataDirty_ = true;
+         // transfer function ranges are relative to the tables
+         synchronized (appearanceLock_) {
+            appliedSettings_ = null;
+         }
+      }
+      return changed;
+   }
+   
+   /**
+    * In reduced precision mode, 16-bit data are mapped to 8 bits using the
+    * current contrast settings before they are sent to the renderer.  This 
+    * halves the memory needed and the time spent uploading.  The setting is 
+    * remembered in the user profile and takes effect for newly opened 
+    * viewers.
+    * @param reduce true to send 16-bit data as 8-bit
+    */
+   public void setReduceTo8Bit(boolean reduce) {
+      studio_.profile().setBoolean(ourClass_, REDUCE_TO_8BIT, reduce);
+   }
+   
+   public boolean getReduceTo8Bit() {
+      return studio_.profile().getBoolean(ourClass_, REDUCE_TO_8BIT, false);
+   }
+   
+   /**
+    * Direction of a step along an axis.  Animations wrap around at the end 
+    * of the axis, so large steps are taken to go the other way.
+    */
+   private static int stepDirection(int step, int axisLength) {
+      if (Math.abs(step) > axisLength / 2) {
+         step = -step;
+      }
+      return Integer.signum(step);
+   }
+   
+   /**
+    * Hands the volume of a single channel to the renderer.
+    * @param ch channel (layer in the renderer)
+    * @param volume all z planes of this channel, or a BrickVolume holding 
+    *          a region of the brick grid
+    * @param coarseFactor downsampling factor of the volume, 1 for full 
+    *          resolution (or the brick level, whichever is larger)
+    */
+   private void uploadChannel(final int ch, final FragmentedMemory volume, 
+           final int coarseFactor) {
+      final BrickGrid.Region region = volume instanceof BrickVolume ? 
+              ((BrickVolume) volume).getRegion() : null;
+      final int factor = region != null ? region.getGrid().getFactor() : 
+              Math.max(coarseFactor, levelFactor());
+      final Metadata metadata = store_.getAnyImage().getMetadata();
+      final SummaryMetadata summary = store_.getSummaryMetadata();
+      // TODO: correct x and y voxel sizes using aspect ratio
+      double pixelSizeUm = metadata.getPixelSizeUm();
+      if (pixelSizeUm == 0.0) {
+         pixelSizeUm = 1.0;
+      }
+      Double stepSizeUm = summary.getZStepUm();
+      if (stepSizeUm == null || stepSizeUm == 0.0) {
+         stepSizeUm = 1.0;
+      }
+
+      // pass data to renderer: (this call takes a long time!)
+      clearVolumeRenderer_.setVolumeDataBuffer(0, 
+              TimeUnit.SECONDS, 
+              ch,
+              volume,
+              region != null ? region.getWidth() : 
+                      VolumeDownsampler.reducedSize(planeWidth_, factor),
+              region != null ? region.getHeight() : 
+                      VolumeDownsampler.reducedSize(planeHeight_, factor),
+              region != null ? region.getDepth() : 
+                      VolumeDownsampler.reducedDepth(
+                              store_.getAxisLength(Coords.Z), factor), 
+              pixelSizeUm * factor,
+              pixelSizeUm * factor, 
+              stepSizeUm * factor);
+      if (brickGrid_ != null) {
+         shownRegion_ = region;
+         applyClipBox();
+      }
+   }
+   
+   /**
+    * Hands our clip box to the renderer.  When the renderer holds a region 
+    * of the brick grid, the clip box is mapped onto that region.
+    */
+   private void applyClipBox() {
+      final BrickGrid.Region region = shownRegion_;
+      clearVolumeRenderer_.setClipBox(region == null ? clipBox_.clone() : 
+              region.toRendererClipBox(clipBox_));
+   }
+   
+   /**
+    * Collects all z planes of all channels of the given time point and 
+    * stage position.
+    * Complete channels are taken from, or added to, the volume cache.
+    * Planes of the other channels are read together, so that the reads can
+    * be scheduled in the order in which they are stored.
+    * Missing planes are replaced with zeros.
+    * 
+    * @param timePoint time point to be assembled
+    * @param position stage position to be assembled
+    * @param requireComplete when true, returns null if a plane is missing
+    * @param wanted channels to be assembled, others are left null
+    * @return FragmentedMemory for each channel, or null (see requireComplete)
+    */
+   private FragmentedMemory[] assembleVolume(final int timePoint, 
+           final int position, final boolean requireComplete, 
+           final boolean[] wanted) {
+      return assembleVolume(timePoint, position, requireComplete, wanted, 
+              false);
+   }
+   
+   /**
+    * @param updateContrast when true, autostretches (if the display settings
+    *          ask for it) and updates the look-up tables after the planes 
+    *          were read, but before the channels are built
+    */
+   private FragmentedMemory[] assembleVolume(final int timePoint, 
+           final int position, final boolean requireComplete, 
+           final boolean[] wanted, final boolean updateContrast) {
+      final int nrCh = store_.getAxisLength(Coords.CHANNEL);
+      FragmentedMemory[] volume = new FragmentedMemory[nrCh];
+      if (updateContrast && brickGrid_ != null) {
+         updateContrast(timePoint, position);
+      }
+      if (brickGrid_ != null) {
+         final BrickGrid.Region region = brickRegion_;
+         for (int ch = 0; ch < nrCh; ch++) {
+            if (!wanted[ch]) {
+               continue;
+            }
+            volume[ch] = assembleBricks(timePoint, position, ch, 
+                    requireComplete, region);
+            if (volume[ch] == null) {
+               return null;
+            }
+         }
+         return volume;
+      }
+      
+      List<Integer> toRead = new ArrayList<>(nrCh);
+      for (int ch = 0; ch < nrCh; ch++) {
+         if (!wanted[ch]) {
+            continue;
+         }
+         ByteBuffer cached = volumeCache_.get(new VolumeKey(timePoint, position, ch));
+         if (cached != null) {
+            volume[ch] = new FragmentedMemory();
+            volume[ch].add(cached);
+         } else {
+            toRead.add(ch);
+         }
+      }
+      if (toRead.isEmpty()) {
+         if (updateContrast && updateContrast(timePoint, position)) {
+            // the cached volumes were reduced with outdated tables
+            return assembleVolume(timePoint, position, requireComplete, 
+                    wanted, false);
+         }
+         return volume;
+      }
+      final int[] channels = new int[toRead.size()];
+      for (int i = 0; i < channels.length; i++) {
+         channels[i] = toRead.get(i);
+      }
+      final Buffer[][] planes = planeFetcher_.fetch(timePoint, position, 
+              channels, store_.getAxisLength(Coords.Z));
+      if (displaySettings_.getShouldAutostretch()) {
+         calculateHistograms(timePoint, position, channels, planes);
+      }
+      if (updateContrast && updateContrast(timePoint, position)) {
+         // volumes taken from the cache were reduced with outdated tables
+         boolean[] stale = new boolean[nrCh];
+         boolean anyStale = false;
+         for (int ch = 0; ch < nrCh; ch++) {
+            stale[ch] = volume[ch] != null;
+            anyStale |= stale[ch];
+         }
+         if (anyStale) {
+            FragmentedMemory[] reread = assembleVolume(timePoint, position, 
+                    requireComplete, stale, false);
+            if (reread == null) {
+               return null;
+            }
+            for (int ch = 0; ch < nrCh; ch++) {
+               if (stale[ch]) {
+                  volume[ch] = reread[ch];
+               }
+            }
+         }
+      }
+      
+      // Channels are independent, so build them concurrently
+      List<Future<FragmentedMemory>> futures = new ArrayList<>(channels.length);
+      for (int i = 0; i < channels.length; i++) {
+         final int index = i;
+         futures.add(assemblyExecutor_.submit(() -> buildChannel(timePoint, 
+                 position, channels[index], planes[index], requireComplete)));
+      }
+      for (int i = 0; i < channels.length; i++) {
+         final int ch = channels[i];
          try {
-            float max = (float) displaySettings_.getChannelContrastSettings()[ch].getContrastMaxes()[0]
-                    / (float) maxValue_;
-            float min = (float) displaySettings_.getChannelContrastSettings()[ch].getContrastMins()[0]
-                    / (float) maxValue_;
-            clearVolumeRenderer_.setTransferFunctionRange(ch, min, max);
-            Double[] contrastGammas = displaySettings_.getChannelContrastSettings()[ch].getContrastGammas();
-            if (contrastGammas != null) {
-               clearVolumeRenderer_.setGamma(ch, contrastGammas[0]);
+            volume[ch] = futures.get(i).get();
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            volume[ch] = buildChannel(timePoint, position, ch, planes[i], 
+                    requireComplete);
+         } catch (ExecutionException ee) {
+            for (Future<FragmentedMemory> future : futures) {
+               future.cancel(false);
             }
-         } catch (NullPointerException ex) {
-            studio_.logs().showError(ex);
+            if (ee.getCause() instanceof RuntimeException) {
+               throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+         }
+         if (volume[ch] == null) {
+            // no interrupt, that would close the Datastore's FileChannels
+            for (Future<FragmentedMemory> future : futures) {
+               future.cancel(false);
+            }
+            return null;
+         }
+      }
+      return volume;
+   }
+   
+   /**
+    * Builds the volume of a single channel from its z planes.
+    * When all planes are present, they are copied into a single off-heap 
+    * buffer that is added to the cache.
+    * @param planes pixel buffers in z order, null where missing
+    */
+   private FragmentedMemory buildChannel(final int timePoint, 
+           final int position, final int ch, final Buffer[] planes, 
+           final boolean requireComplete) {
+      final int nrZ = planes.length;
+      final long planeBytes = (long) planeWidth_ * planeHeight_ * 
+              rendererBytesPerPixel_;
+      // the table may be replaced while we work, so hold on to this one
+      final ChannelLut lut = reduceTo8Bit_ ? luts_[ch] : null;
+      boolean complete = true;
+      for (Buffer plane : planes) {
+         if (plane == null) {
+            if (requireComplete) {
+               return null;
+            }
+            complete = false;
          }
       }
-      currentlyShownTimePoint_ = timePoint;
-      clearVolumeRenderer_.setVolumeDataUpdateAllowed(true);
       
-      // This call used to time out, now appears to work      
-      if (!clearVolumeRenderer_.waitToFinishAllDataBufferCopy(2, TimeUnit.SECONDS)) {
-         studio_.logs().logError("ClearVolume timed out after 2 seconds");
+      FragmentedMemory fragmentedMemory = new FragmentedMemory();
+      if (complete || lut != null) {
+         ByteBuffer volume = BufferUtils.allocate(nrZ * planeBytes);
+         for (int i = 0; i < nrZ; i++) {
+            volume.position((int) (i * planeBytes));
+            if (planes[i] != null) {
+               copyPlane(planes[i], volume, lut);
+            }
+         }
+         volume.rewind();
+         // do not cache data reduced with an outdated look-up table
+         if (complete && (lut == null || lut == luts_[ch])) {
+            volumeCache_.put(new VolumeKey(timePoint, position, ch), volume);
+         }
+         fragmentedMemory.add(volume.duplicate());
+         return fragmentedMemory;
+      }
+      
+      for (Buffer plane : planes) {
+         // add the contiguous memory as fragment:
+         if (plane != null) {
+            fragmentedMemory.add(plane);
+         } else {
+            // if the image is missing, replace with pixels initialized to 0
+            fragmentedMemory.add(zeroPlane_.duplicate());
+         }
+      }
+      return fragmentedMemory;
+   }
+   
+   /**
+    * Assembles the volume of a single channel for a region of the brick 
+    * grid.  Only the planes needed at the region's level are read, through
+    * the shared plane fetcher, and complete volumes are cached per region.
+    */
+   private FragmentedMemory assembleBricks(final int timePoint, 
+           final int position, final int ch, final boolean requireComplete,
+           final BrickGrid.Region region) {
+      final VolumeKey key = brickKey(timePoint, position, ch, region);
+      BrickVolume brickVolume = new BrickVolume(region);
+      ByteBuffer cached = volumeCache_.get(key);
+      if (cached != null) {
+         brickVolume.add(cached);
+         return brickVolume;
+      }
+      final BrickGrid grid = region.getGrid();
+      final int zStart = region.getBounds()[4];
+      final int[] zPlanes = new int[region.getDepth()];
+      for (int z = 0; z < zPlanes.length; z++) {
+         zPlanes[z] = grid.sourcePlane(zStart + z);
       }
-  
+      final Buffer[] planes = planeFetcher_.fetch(timePoint, position, 
+              new int[] {ch}, zPlanes)[0];
+      final ChannelLut lut = reduceTo8Bit_ ? luts_[ch] : null;
+      ByteBuffer volume = BufferUtils.allocate((long) region.getWidth() * 
+              region.getHeight() * region.getDepth() * rendererBytesPerPixel_);
+      final List<BrickGrid.Brick> bricks = region.getBricks();
+      boolean complete = true;
+      for (int z = 0; z < zPlanes.length; z++) {
+         if (planes[z] == null) {
+            if (requireComplete) {
+               return null;
+            }
+            complete = false;
+            continue;
+         }
+         final int levelZ = zStart + z;
+         for (BrickGrid.Brick brick : bricks) {
+            if (levelZ >= brick.getZStart() && levelZ < brick.getZEnd()) {
+               grid.fillBrickPlane(region, brick, ch, levelZ, planes[z], 
+                       volume, rendererBytesPerPixel_, lut);
+            }
+         }
+      }
+      volume.rewind();
+      // do not cache data reduced with an outdated look-up table
+      if (complete && (lut == null || lut == luts_[ch])) {
+         volumeCache_.put(key, volume);
+      }
+      brickVolume.add(volume.duplicate());
+      return brickVolume;
+   }
+   
+   private static VolumeKey brickKey(final int timePoint, final int position,
+           final int ch, final BrickGrid.Region region) {
+      return new VolumeKey(timePoint, position, ch, 
+              region.getGrid().getFactor(), region.getBounds());
+   }
+   
+   /**
+    * Region of the brick grid needed to show the clip box, at the finest 
+    * level at which it fits in the renderer.
+    */
+   private BrickGrid.Region brickRegionFor(final float[] clipBox) {
+      final int factor = BrickGrid.levelFor(planeWidth_, planeHeight_, 
+              brickGrid_.getDepth(), clipBox, 
+              MAX_RENDERER_VOXELS);
+      BrickGrid grid;
+      synchronized (brickGrids_) {
+         grid = brickGrids_.computeIfAbsent(factor, brickGrid_::atLevel);
+      }
+      return grid.getRegion(clipBox);
+   }
+   
+   /**
+    * Brick layout of volumes too large to be shown at full resolution.
+    * @return brick grid, or null when volumes are shown at full resolution
+    */
+   public BrickGrid getBrickGrid() {
+      return brickGrid_;
    }
 
    /*
@@ -718,6 +1798,35 @@ public class CVViewer implements DataViewer {
       }
    }
    
+   /**
+    * Rotates the volume around the vertical axis of the view.
+    * @param radians angle to rotate by
+    */
+   public void rotateY(final float radians) {
+      if (clearVolumeRenderer_ != null) {
+         Quaternion q = new Quaternion(clearVolumeRenderer_.getQuaternion());
+         clearVolumeRenderer_.setQuaternion(q.rotateByAngleY(radians));
+         clearVolumeRenderer_.requestDisplay();
+      }
+   }
+   
+   /**
+    * Asks the renderer to draw a new frame, even if nothing changed.
+    */
+   public void requestDisplay() {
+      if (clearVolumeRenderer_ != null) {
+         clearVolumeRenderer_.requestDisplay();
+      }
+   }
+   
+   public int getShownTimePoint() {
+      return currentlyShownTimePoint_;
+   }
+   
+   public int getShownPosition() {
+      return currentlyShownPosition_;
+   }
+   
    public void attachRecorder(VideoRecorderInterface recorder) {
       Runnable dt = new Thread  (() -> {               
          clearVolumeRenderer_.setVideoRecorder(recorder);
@@ -762,7 +1871,9 @@ public class CVViewer implements DataViewer {
       if (clearVolumeRenderer_ != null) {
          float min = ( (float) minVal / (float) CVInspectorPanel.SLIDERRANGE ) * 2 - 1;
          float max = ( (float) maxVal / (float) CVInspectorPanel.SLIDERRANGE ) * 2 - 1;
-         float[] clipBox = clearVolumeRenderer_.getClipBox();
+         // the renderer's clip box is relative to the brick region it holds
+         float[] clipBox = brickGrid_ != null ? clipBox_.clone() : 
+                 clearVolumeRenderer_.getClipBox();
          switch (axis) {
                  case CVInspectorPanel.XAXIS : 
                     clipBox[0] = min;  clipBox[1] = max;
@@ -774,12 +1885,43 @@ public class CVViewer implements DataViewer {
                     clipBox[4] = min;  clipBox[5] = max;
                     break;
          }
-         clearVolumeRenderer_.setClipBox(clipBox); 
+         clipBox_ = clipBox.clone();
+         applyClipBox();
+         // refill when bricks came into view, or when the clip box changed 
+         // enough to show it at another resolution level
+         if (brickGrid_ != null && open_) {
+            BrickGrid.Region needed = brickRegionFor(clipBox);
+            if (!brickRegion_.covers(needed)) {
+               brickRegion_ = needed;
+               prefetcher_.discard();
+               scheduleRefinement(currentlyShownTimePoint_, 
+                       currentlyShownPosition_, 
+                       drawGeneration_.incrementAndGet());
+            }
+         }
       }
    }
    
+   /**
+    * Sets the maximum amount of off-heap memory used to cache assembled 
+    * volumes, shared by all viewers.  The value is remembered in the user 
+    * profile.
+    * @param sizeMB cache size in MB
+    */
+   public void setVolumeCacheSizeMB(int sizeMB) {
+      studio_.profile().setInt(ourClass_, CACHE_SIZE_MB, sizeMB);
+      volumeCache_.setMaxBytes((long) sizeMB << 20);
+   }
+   
+   public VolumeCache getVolumeCache() {
+      return volumeCache_;
+   }
+   
    public float[] getClipBox() {
       if (clearVolumeRenderer_ != null) {
+         if (brickGrid_ != null) {
+            return clipBox_.clone();
+         }
          return clearVolumeRenderer_.getClipBox();
       }
       return null;
@@ -800,76 +1942,389 @@ public class CVViewer implements DataViewer {
       return null;
    }
    
-   private void autostretch() {
-      Coords baseCoords = getDisplayedImages().get(0).getCoords();
+   /**
+    * Autostretches if the display settings ask for it, and makes sure the 
+    * look-up tables match the contrast settings.
+    * @return true if a look-up table was replaced
+    */
+   private boolean updateContrast(final int timePoint, final int position) {
+      if (displaySettings_.getShouldAutostretch()) {
+         autostretch(timePoint, position);
+      }
+      return reduceTo8Bit_ && updateLuts();
+   }
+   
+   /**
+    * Calculates the histograms of freshly read channels, so that 
+    * autostretching finds them in the cache rather than reading the data
+    * again.
+    */
+   private void calculateHistograms(final int timePoint, final int position,
+           final int[] channels, final Buffer[][] planes) {
+      final Image anyImage = store_.getAnyImage();
+      if (anyImage == null) {
+         return;
+      }
+      final int bitDepth = anyImage.getMetadata().getBitDepth();
+      final int[] bounds = clipBounds();
+      for (int i = 0; i < channels.length; i++) {
+         histogramEngine_.getHistogram(
+                 new VolumeKey(timePoint, position, channels[i]), planes[i], 
+                 planeWidth_, planeHeight_, bitDepth, bounds);
+      }
+   }
+   
+   /**
+    * Sets the contrast of each channel from the histogram of the volume 
+    * (within the clip box).  Runs on the render thread: the new contrast 
+    * settings are merged into the latest display settings, so that changes
+    * made on the EDT in the meantime are kept, and the inspector is told on 
+    * the EDT.
+    * @param timePoint time point of the volume
+    * @param position stage position of the volume
+    */
+   private void autostretch(final int timePoint, final int position) {
       Double extremaPercentage = displaySettings_.getExtremaPercentage();
       if (extremaPercentage == null) {
          extremaPercentage = 0.0;
       }
-      DisplaySettings.DisplaySettingsBuilder builder = 
-              displaySettings_.copy();
-      for (int ch = 0; ch < store_.getAxisLength(Coords.CHANNEL); ++ch) {
-         Image image = store_.getImage(baseCoords.copy().channel(ch).build());
-         if (image != null) {
-            int numComponents = image.getNumComponents();
-            Integer[] mins = new Integer[numComponents];
-            Integer[] maxes = new Integer[numComponents];
-            Double[] gammas = new Double[numComponents];
-            final ArrayList<HistogramData> datas = new ArrayList(image.getNumComponents());
-            for (int j = 0; j < image.getNumComponents(); ++j) {
-               gammas[j] = displaySettings_.getSafeContrastGamma(ch, j, 1.0);
-               HistogramData data = studio_.displays().calculateHistogram(
-                     getDisplayedImages().get(ch),
-                     j,
-                     store_.getAnyImage().getMetadata().getBitDepth(),
-                     store_.getAnyImage().getMetadata().getBitDepth(),
-                     extremaPercentage,
-                     false  /* make sure that we do not use stdev */ );
-               mins[j] = data.getMinIgnoringOutliers();
-               maxes[j] = data.getMaxIgnoringOutliers();
-               datas.add(j, data);
-            }
-            displaySettings_ = builder.safeUpdateContrastSettings(
-                    studio_.displays().getContrastSettings(
-                            mins, maxes, gammas, true), ch).build();
-            final int tmpCh = ch;
-            if (SwingUtilities.isEventDispatchThread()) {
+      final int nrCh = store_.getAxisLength(Coords.CHANNEL);
+      final int bitDepth = store_.getAnyImage().getMetadata().getBitDepth();
+      final int[] bounds = clipBounds();
+      final Integer[][] mins = new Integer[nrCh][];
+      final Integer[][] maxes = new Integer[nrCh][];
+      for (int ch = 0; ch < nrCh; ++ch) {
+         HistogramEngine.Histogram histogram = histogramEngine_.getHistogram(
+                 new VolumeKey(timePoint, position, ch), planeWidth_, 
+                 planeHeight_, bitDepth, bounds);
+         if (histogram == null) {
+            continue;
+         }
+         // volumes are single component
+         mins[ch] = new Integer[] {
+            histogram.getMinIgnoringOutliers(extremaPercentage)};
+         maxes[ch] = new Integer[] {
+            histogram.getMaxIgnoringOutliers(extremaPercentage)};
+         final ArrayList<HistogramData> datas = new ArrayList<>(1);
+         datas.add(histogram.toHistogramData(extremaPercentage, bitDepth));
+         final int tmpCh = ch;
+         if (SwingUtilities.isEventDispatchThread()) {
+            postEvent(new NewHistogramsEvent(tmpCh, datas));
+         } else {
+            SwingUtilities.invokeLater(() -> {
                postEvent(new NewHistogramsEvent(tmpCh, datas));
-            } else {
-               SwingUtilities.invokeLater(() -> {
-                  postEvent(new NewHistogramsEvent(tmpCh, datas));
-               });
+            });
+         }
+      }
+      final DisplaySettings stretched;
+      synchronized (settingsLock_) {
+         final DisplaySettings latest = displaySettings_;
+         if (!Boolean.TRUE.equals(latest.getShouldAutostretch())) {
+            // switched off while we were working
+            return;
+         }
+         DisplaySettings.DisplaySettingsBuilder builder = latest.copy();
+         for (int ch = 0; ch < nrCh; ++ch) {
+            if (mins[ch] != null) {
+               Double[] gammas = {latest.getSafeContrastGamma(ch, 0, 1.0)};
+               builder.safeUpdateContrastSettings(
+                       studio_.displays().getContrastSettings(
+                               mins[ch], maxes[ch], gammas, true), ch);
             }
          }
+         stretched = builder.build();
+         displaySettings_ = stretched;
+      }
+      if (SwingUtilities.isEventDispatchThread()) {
+         postEvent(new NewDisplaySettingsEvent(stretched, this));
+      } else {
+         SwingUtilities.invokeLater(() -> {
+            postEvent(new NewDisplaySettingsEvent(stretched, this));
+         });
       }
-       postEvent(new NewDisplaySettingsEvent(displaySettings_, this));
    }
    
-   @Subscribe
-   public void onNewImage(NewImageEvent event) {
-      Coords coords = event.getCoords();
+   /**
+    * Sends the histograms of the given volume, as far as they are available,
+    * to the inspector.  Unless forced, does so at most once per 
+    * HISTOGRAM_INTERVAL_MS.
+    */
+   private void postHistograms(final int timePoint, final int position, 
+           final boolean force) {
+      final long now = System.nanoTime();
+      if (!force && now - lastHistogramPostNs_ < 
+              TimeUnit.MILLISECONDS.toNanos(HISTOGRAM_INTERVAL_MS)) {
+         return;
+      }
+      lastHistogramPostNs_ = now;
+      Double extremaPercentage = displaySettings_.getExtremaPercentage();
+      if (extremaPercentage == null) {
+         extremaPercentage = 0.0;
+      }
+      for (int ch = 0; ch < store_.getAxisLength(Coords.CHANNEL); ++ch) {
+         HistogramEngine.Histogram histogram = 
+                 histogramEngine_.getAvailableHistogram(
+                         new VolumeKey(timePoint, position, ch));
+         if (histogram == null) {
+            continue;
+         }
+         final ArrayList<HistogramData> datas = new ArrayList<>(1);
+         datas.add(histogram.toHistogramData(extremaPercentage, 
+                 histogram.getBitDepth()));
+         final int tmpCh = ch;
+         SwingUtilities.invokeLater(() -> {
+            postEvent(new NewHistogramsEvent(tmpCh, datas));
+         });
+      }
+   }
+   
+   /**
+    * Converts the clip box to pixel coordinates of the full resolution 
+    * volume.
+    * @return xmin, xmax, ymin, ymax, zmin, zmax (max exclusive), or null 
+    *          when nothing is clipped
+    */
+   private int[] clipBounds() {
+      final float[] clipBox = clipBox_;
+      final int[] sizes = {planeWidth_, planeHeight_, 
+         store_.getAxisLength(Coords.Z)};
+      int[] bounds = new int[6];
+      boolean clipped = false;
+      for (int axis = 0; axis < 3; axis++) {
+         bounds[2 * axis] = Math.max(0, (int) Math.floor(
+                 (clipBox[2 * axis] + 1.0) / 2.0 * sizes[axis]));
+         bounds[2 * axis + 1] = Math.min(sizes[axis], Math.max(
+                 bounds[2 * axis] + 1, (int) Math.ceil(
+                 (clipBox[2 * axis + 1] + 1.0) / 2.0 * sizes[axis])));
+         clipped |= bounds[2 * axis] > 0 || bounds[2 * axis + 1] < sizes[axis];
+      }
+      return clipped ? bounds : null;
+   }
+   
+   /**
+    * Handles a batch of newly arrived images.  Bookkeeping is done per 
+    * image, but histograms are posted, and the volume is redrawn, at most 
+    * once per batch.
+    * @param images new images, in order of arrival
+    */
+   private void onNewImages(List<Image> images) {
+      Coords lastComplete = null;
+      Coords lastShown = null;
+      for (Image image : images) {
+         Coords coords = image.getCoords();
+         int t = coords.getTime();
+         int p = Math.max(0, coords.getStagePosition());
+         boolean complete = ingestImage(image);
+         if (open_ && p != currentlyShownPosition_) {
+            // we only follow the acquisition at the position we are showing
+            continue;
+         }
+         lastShown = coords;
+         if (open_ && liveMode_ && brickGrid_ == null) {
+            updateLiveVolume(image, complete);
+            if (complete) {
+               synchronized (renderExecutor_) {
+                  requestedTimePoint_ = t;
+               }
+               displayBus_.post(new CanvasDrawCompleteEvent());
+            }
+         } else if (complete) {
+            lastComplete = coords;
+         }
+      }
+      if (lastComplete != null) {
+         // only the newest complete stack is worth drawing
+         int t = lastComplete.getTime();
+         if (!open_) {
+            initializeRenderer(t, Math.max(0, lastComplete.getStagePosition()));
+         } else if (t != currentlyShownTimePoint_) {
+            // we are complete, so now draw the image
+            setDisplayedImageTo(lastComplete);
+         }
+      }
+      if (open_ && lastShown != null) {
+         // autostretching posts the histograms of complete stacks itself
+         postHistograms(lastShown.getTime(), currentlyShownPosition_, 
+                 lastComplete != null && !displaySettings_.getShouldAutostretch());
+      }
+   }
+   
+   /**
+    * Bookkeeping for a single new image: updates the stack index, cache, 
+    * and histograms.
+    * @return true if this image completed its stack
+    */
+   private boolean ingestImage(Image image) {
+      Coords coords = image.getCoords();
       int t = coords.getTime();
-      if (t != currentlyShownTimePoint_) { 
-         // we are not yet showing this time point
-         // check if we have all z planes, if so draw the volume
-         /** The following code is exact, but very slow
-         Coords zStackCoords = studio_.data().getCoordsBuilder().time(t).build();
-         final int nrImages = store_.getImagesMatching(zStackCoords).size();
-         */
-         Coords intendedDimensions = store_.getSummaryMetadata().getIntendedDimensions();
-         // instead, keep our own counter, this assumes that all time points arrive in order
-         // TODO: work around this by keeping a list of counters
-         imgCounter_++;
-         if (imgCounter_ == intendedDimensions.getChannel() * intendedDimensions.getZ()) {
-            if (!open_) {
-               initializeRenderer(0);
-            } else {
-               // we are complete, so now draw the image
-               setDisplayedImageTo(coords);
+      // a plane of a cached volume was (re-)written
+      int p = Math.max(0, coords.getStagePosition());
+      final VolumeKey key = new VolumeKey(t, p, coords.getChannel());
+      volumeCache_.removeAll(key);
+      if (t == currentlyShownTimePoint_ && p == currentlyShownPosition_) {
+         dataDirty_ = true;
+      }
+      // histograms are ready when the stack completes, without reading it again
+      if (image instanceof DefaultImage) {
+         histogramEngine_.addPlane(key, coords.getZ(), stackDepth(), 
+                 ((DefaultImage) image).getPixelBuffer(), image.getWidth(), 
+                 image.getHeight(), image.getMetadata().getBitDepth());
+      } else {
+         histogramEngine_.invalidate(key);
+      }
+      // Draw as soon as all planes of a stack are present, regardless of the
+      // order in which they arrived
+      return stackIndex_.add(t, p, coords.getChannel(), coords.getZ());
+   }
+   
+   /**
+    * Number of planes in a full stack.  The Z axis of the Datastore grows
+    * while the first stack is acquired, so prefer the intended dimensions.
+    */
+   private int stackDepth() {
+      return Math.max(intendedNrZ_, store_.getAxisLength(Coords.Z));
+   }
+   
+   /**
+    * @return dispatcher that hands out the new images of our Datastore in 
+    *          batches, null before register() was called
+    */
+   public ImageIngestDispatcher getIngestDispatcher() {
+      return ingestDispatcher_;
+   }
+   
+   /**
+    * Live mode: writes the new plane into its z slot of the volume we are
+    * showing, and passes the changed channels on to the renderer, at most
+    * once per live update interval (and always when a stack completes).
+    * 
+    * @param image newly arrived image
+    * @param flush when true, upload regardless of the update interval, 
+    *          and from then on treat the image's time point as shown.  
+    *          Used when the image completed its stack.
+    */
+   private void updateLiveVolume(final Image image, final boolean flush) {
+      final Coords coords = image.getCoords();
+      final int nrCh = store_.getAxisLength(Coords.CHANNEL);
+      final int nrZ = stackDepth();
+      final long planeBytes = (long) planeWidth_ * planeHeight_ * 
+              rendererBytesPerPixel_;
+      if (coords.getChannel() >= nrCh || coords.getZ() >= nrZ) {
+         return;
+      }
+      synchronized (liveLock_) {
+         if (liveVolume_ == null || liveVolume_.length != nrCh || 
+                 liveVolume_[0].capacity() != nrZ * planeBytes) {
+            liveVolume_ = new ByteBuffer[nrCh];
+            for (int ch = 0; ch < nrCh; ch++) {
+               liveVolume_[ch] = BufferUtils.allocate(nrZ * planeBytes);
             }
-            imgCounter_ = 0;
+            liveDirty_ = new boolean[nrCh];
+            liveVolumeStale_ = true;
          }
+         if (liveVolumeStale_) {
+            // start out with the volume that is currently displayed
+            for (int ch = 0; ch < nrCh; ch++) {
+               copyChannelInto(liveVolume_[ch], currentlyShownTimePoint_, 
+                       currentlyShownPosition_, ch);
+            }
+            liveVolumeStale_ = false;
+         }
+         
+         ByteBuffer slot = liveVolume_[coords.getChannel()].duplicate();
+         slot.order(liveVolume_[coords.getChannel()].order());
+         slot.position((int) (coords.getZ() * planeBytes));
+         copyPlane(((DefaultImage) image).getPixelBuffer(), slot, 
+                 reduceTo8Bit_ ? luts_[coords.getChannel()] : null);
+         liveDirty_[coords.getChannel()] = true;
+         
+         long now = System.nanoTime();
+         if (!flush && now - lastLiveUploadNs_ < 
+                 TimeUnit.MILLISECONDS.toNanos(liveUpdateIntervalMs_)) {
+            return;
+         }
+         final boolean[] visible = layerVisible_;
+         synchronized (uploadLock_) {
+            clearVolumeRenderer_.setVolumeDataUpdateAllowed(false);
+            for (int ch = 0; ch < nrCh; ch++) {
+               // hidden channels stay dirty, and are sent once shown again
+               if (liveDirty_[ch] && (visible == null || 
+                       ch >= visible.length || visible[ch])) {
+                  FragmentedMemory fragmentedMemory = new FragmentedMemory();
+                  fragmentedMemory.add(liveVolume_[ch].duplicate());
+                  uploadChannel(ch, fragmentedMemory, 1);
+                  liveDirty_[ch] = false;
+               }
+            }
+            if (flush) {
+               currentlyShownTimePoint_ = coords.getTime();
+            }
+            clearVolumeRenderer_.setVolumeDataUpdateAllowed(true);
+            // we write into the same buffers, so wait until the renderer has them
+            if (!clearVolumeRenderer_.waitToFinishAllDataBufferCopy(2, TimeUnit.SECONDS)) {
+               studio_.logs().logError("ClearVolume timed out after 2 seconds");
+            }
+         }
+         lastLiveUploadNs_ = System.nanoTime();
+      }
+   }
+   
+   /**
+    * Copies all z planes of a channel into dest.  Missing planes are left 
+    * untouched.
+    */
+   private void copyChannelInto(final ByteBuffer dest, final int timePoint, 
+           final int position, final int ch) {
+      ByteBuffer target = dest.duplicate();
+      target.order(dest.order());
+      ByteBuffer cached = volumeCache_.get(
+              new VolumeKey(timePoint, position, ch));
+      if (cached != null) {
+         target.put(cached);
+         return;
       }
+      final long planeBytes = (long) planeWidth_ * planeHeight_ * 
+              rendererBytesPerPixel_;
+      final ChannelLut lut = reduceTo8Bit_ ? luts_[ch] : null;
+      Coords.CoordsBuilder builder = studio_.data().getCoordsBuilder();
+      for (int z = 0; z < store_.getAxisLength(Coords.Z); z++) {
+         DefaultImage image = (DefaultImage) store_.getImage(
+                 builder.z(z).channel(ch).time(timePoint).
+                         stagePosition(position).build());
+         if (image != null) {
+            target.position((int) (z * planeBytes));
+            copyPlane(image.getPixelBuffer(), target, lut);
+         }
+      }
+   }
+   
+   /**
+    * In live mode, planes are shown as soon as they arrive, instead of only 
+    * when the stack for a time point is complete.  The setting is remembered 
+    * in the user profile.
+    * @param liveMode true to switch live mode on
+    */
+   public void setLiveMode(boolean liveMode) {
+      studio_.profile().setBoolean(ourClass_, LIVE_MODE, liveMode);
+      liveMode_ = liveMode;
+      if (!liveMode) {
+         synchronized (liveLock_) {
+            liveVolume_ = null;
+         }
+      }
+   }
+   
+   public boolean getLiveMode() {
+      return liveMode_;
+   }
+   
+   /**
+    * Sets the minimum time between partial volume updates in live mode.
+    * @param intervalMs interval in milliseconds
+    */
+   public void setLiveUpdateIntervalMs(int intervalMs) {
+      studio_.profile().setInt(ourClass_, LIVE_UPDATE_INTERVAL_MS, intervalMs);
+      liveUpdateIntervalMs_ = intervalMs;
    }
    
    @Subscribe
@@ -0,0 +1,151 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+
+package edu.ucsf.valelab.mmclearvolumeplugin;
+
+import edu.ucsf.valelab.mmclearvolumeplugin.recorder.CVVideoRecorder;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import org.micromanager.Studio;
+
+/**
+ * Exports a movie by stepping the viewer through time points itself, 
+ * rather than recording whatever is shown while the ScrollerPanel animates.
+ * For every frame, the volume is uploaded at full resolution and exactly one
+ * frame is captured, so no time points are skipped or doubled, and the 
+ * export runs as fast as the viewer can draw.
+ * Optionally, the volume is rotated by a fixed angle between frames.
+ * 
+ * @author nico
+ */
+public class MovieExporter {
+   
+   // maximum time to wait for a single frame to be drawn
+   private static final long FRAME_TIMEOUT_MS = 10000;
+   // times a volume is requested again when another request replaced it
+   private static final int MAX_SHOW_ATTEMPTS = 3;
+   
+   private final Studio studio_;
+   private final CVViewer viewer_;
+   private final CVVideoRecorder recorder_;
+   private volatile boolean cancelled_ = false;
+   
+   public MovieExporter(Studio studio, CVViewer viewer, 
+           CVVideoRecorder recorder) {
+      studio_ = studio;
+      viewer_ = viewer;
+      recorder_ = recorder;
+   }
+   
+   /**
+    * Starts the export on a background thread.  The result is shown by the 
+    * recorder when done.
+    * @param position stage position to export
+    * @param firstTimePoint first time point (inclusive)
+    * @param lastTimePoint last time point (inclusive)
+    * @param framesPerTimePoint number of frames per time point
+    * @param degreesPerFrame rotation around the vertical axis between frames
+    * @param onDone run (on the export thread) when the export finished or
+    *          was cancelled, may be null
+    */
+   public void start(final int position, final int firstTimePoint, 
+           final int lastTimePoint, final int framesPerTimePoint, 
+           final double degreesPerFrame, final Runnable onDone) {
+      Thread t = new Thread(() -> {
+         try {
+            export(position, firstTimePoint, lastTimePoint, 
+                    framesPerTimePoint, degreesPerFrame);
+         } finally {
+            if (onDone != null) {
+               onDone.run();
+            }
+         }
+      }, "ClearVolume movie export");
+      t.setDaemon(true);
+      t.start();
+   }
+   
+   /**
+    * Stops the export after the current frame.  Frames captured so far are
+    * still shown.
+    */
+   public void cancel() {
+      cancelled_ = true;
+   }
+   
+   private void export(int position, int firstTimePoint, int lastTimePoint,
+           int framesPerTimePoint, double degreesPerFrame) {
+      final int shownTimePoint = viewer_.getShownTimePoint();
+      final float radiansPerFrame = (float) Math.toRadians(degreesPerFrame);
+      recorder_.setTriggered(true);
+      viewer_.attachRecorder(recorder_);
+      try {
+         boolean firstFrame = true;
+         for (int t = firstTimePoint; t <= lastTimePoint && !cancelled_; t++) {
+            if (!show(t, position)) {
+               studio_.logs().logError("ClearVolume export: failed to show "
+                       + "time point " + t);
+               return;
+            }
+            for (int f = 0; f < framesPerTimePoint && !cancelled_; f++) {
+               if (!firstFrame && radiansPerFrame != 0.0f) {
+                  viewer_.rotateY(radiansPerFrame);
+               }
+               firstFrame = false;
+               if (!recorder_.captureFrame(viewer_::requestDisplay, 
+                       FRAME_TIMEOUT_MS)) {
+                  studio_.logs().logError("ClearVolume export: no frame drawn"
+                          + " for time point " + t + " within " 
+                          + FRAME_TIMEOUT_MS + " ms");
+                  return;
+               }
+            }
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      } finally {
+         recorder_.stopRecording();
+         recorder_.setTriggered(false);
+         if (shownTimePoint >= 0) {
+            viewer_.showVolume(shownTimePoint, position);
+         }
+      }
+   }
+   
+   /**
+    * Shows the volume at full resolution, and waits until the renderer
+    * has copied it.
+    * @return false if the volume could not be shown
+    */
+   private boolean show(int timePoint, int position) 
+           throws InterruptedException {
+      for (int i = 0; i < MAX_SHOW_ATTEMPTS; i++) {
+         try {
+            if (viewer_.showVolume(timePoint, position, true).get()) {
+               return true;
+            }
+         } catch (CancellationException ce) {
+            // replaced by a request from elsewhere, ask again
+         } catch (ExecutionException ee) {
+            studio_.logs().logError(ee.getCause(), 
+                    "ClearVolume export: error showing volume");
+            return false;
+         }
+      }
+      return false;
+   }
+   
+}
@@ -0,0 +1,173 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.events;
+
+import com.google.common.eventbus.Subscribe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.NewImageEvent;
+
+/**
+ * Collects the images announced by a Datastore's NewImageEvents during a 
+ * short window, and hands them to its listeners as a single batch, so that
+ * listeners do their bookkeeping (and redraw) once per batch rather than 
+ * once per plane.
+ * Every dispatcher delivers its batches on a thread of its own, in the order
+ * in which the images arrived, so that a slow viewer does not hold up 
+ * others.
+ * At most MAX_PENDING_IMAGES images are held on to while listeners are busy.
+ * Beyond that only their coordinates are kept, and the images are looked up
+ * in the Datastore again when they are handed out, in batches of the same 
+ * size.
+ * 
+ * @author nico
+ */
+public class ImageIngestDispatcher {
+   
+   public static final int MAX_PENDING_IMAGES = 256;
+   
+   private final ScheduledExecutorService scheduler_;
+   private final Studio studio_;
+   private final Datastore store_;
+   private final long windowMs_;
+   private final List<Consumer<List<Image>>> listeners_ = 
+           new CopyOnWriteArrayList<>();
+   private List<Image> pending_ = new ArrayList<>();
+   // images that arrived while pending_ was full
+   private List<Coords> overflow_ = new ArrayList<>();
+   private boolean scheduled_ = false;
+   private volatile boolean closed_ = false;
+   
+   /**
+    * Starts listening to the store.
+    * @param studio used for logging
+    * @param store Datastore whose new images we batch
+    * @param windowMs time during which images are collected before they are 
+    *          handed out
+    */
+   public ImageIngestDispatcher(Studio studio, Datastore store, long windowMs) {
+      studio_ = studio;
+      store_ = store;
+      windowMs_ = windowMs;
+      scheduler_ = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+         Thread t = new Thread(r, "ClearVolume image ingest thread");
+         t.setDaemon(true);
+         return t;
+      });
+      store_.registerForEvents(this);
+   }
+   
+   /**
+    * @param listener called on the ingest thread with each batch of images
+    */
+   public void addListener(Consumer<List<Image>> listener) {
+      listeners_.add(listener);
+   }
+   
+   public void removeListener(Consumer<List<Image>> listener) {
+      listeners_.remove(listener);
+   }
+   
+   @Subscribe
+   public void onNewImage(NewImageEvent event) {
+      synchronized (this) {
+         if (closed_) {
+            return;
+         }
+         if (pending_.size() < MAX_PENDING_IMAGES) {
+            pending_.add(event.getImage());
+         } else {
+            overflow_.add(event.getImage().getCoords());
+         }
+         if (scheduled_) {
+            return;
+         }
+         scheduled_ = true;
+      }
+      try {
+         scheduler_.schedule(this::dispatch, windowMs_, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException ree) {
+         // closed in the meantime
+      }
+   }
+   
+   private void dispatch() {
+      List<Image> batch;
+      List<Coords> overflow;
+      synchronized (this) {
+         batch = pending_;
+         overflow = overflow_;
+         pending_ = new ArrayList<>();
+         overflow_ = new ArrayList<>();
+         scheduled_ = false;
+      }
+      deliver(batch);
+      // look up the images we did not hold on to, a batch at a time
+      for (int start = 0; start < overflow.size() && !closed_; 
+              start += MAX_PENDING_IMAGES) {
+         int end = Math.min(overflow.size(), start + MAX_PENDING_IMAGES);
+         List<Image> images = new ArrayList<>(end - start);
+         for (Coords coords : overflow.subList(start, end)) {
+            Image image = store_.getImage(coords);
+            if (image != null) {
+               images.add(image);
+            }
+         }
+         deliver(images);
+      }
+   }
+   
+   private void deliver(List<Image> batch) {
+      if (closed_ || batch.isEmpty()) {
+         return;
+      }
+      for (Consumer<List<Image>> listener : listeners_) {
+         try {
+            listener.accept(batch);
+         } catch (RuntimeException re) {
+            // one failing listener should not starve the others, nor 
+            // kill our thread
+            studio_.logs().logError(re);
+         }
+      }
+   }
+   
+   /**
+    * Stops listening to the store.  Images not yet handed out are dropped.
+    */
+   public void close() {
+      synchronized (this) {
+         closed_ = true;
+         pending_ = new ArrayList<>();
+         overflow_ = new ArrayList<>();
+      }
+      store_.unregisterForEvents(this);
+      listeners_.clear();
+      // no interrupt, that would close the Datastore's FileChannels
+      scheduler_.shutdown();
+   }
+   
+}
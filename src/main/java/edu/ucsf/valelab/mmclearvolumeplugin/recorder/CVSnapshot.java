@@ -2,12 +2,10 @@
 package edu.ucsf.valelab.mmclearvolumeplugin.recorder;
 
 import clearvolume.renderer.cleargl.recorder.VideoRecorderBase;
-import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GLAutoDrawable;
 import ij.ImagePlus;
-import java.awt.image.BufferedImage;
+import ij.process.ColorProcessor;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 /**
  *
@@ -19,10 +17,11 @@ import java.nio.ByteOrder;
  */
 public class CVSnapshot extends VideoRecorderBase {
    
-
+   // one slot, reused for every snapshot taken with this instance
+   private FrameReadbackRing ring_;
 
    @Override
-   public boolean screenshot(GLAutoDrawable pGLAutoDrawable,
+   public synchronized boolean screenshot(GLAutoDrawable pGLAutoDrawable,
            boolean pAsynchronous) {
 
       if (!super.screenshot(pGLAutoDrawable, pAsynchronous)) {
@@ -31,34 +30,40 @@ public class CVSnapshot extends VideoRecorderBase {
 
       super.toggleActive();
 
-      final int lWidth = pGLAutoDrawable.getSurfaceWidth();
-      final int lHeight = pGLAutoDrawable.getSurfaceHeight();
-
-      ByteBuffer lByteBuffer
-              = ByteBuffer.allocateDirect(lWidth * lHeight * 3)
-              .order(ByteOrder.nativeOrder());
-
-      final GL lGL = pGLAutoDrawable.getGL();
-
-      lGL.glPixelStorei(GL.GL_PACK_ALIGNMENT, 1);
-
-      lGL.glReadPixels(0,     // GLint x
-              0,              // GLint y
-              lWidth,         // GLsizei width
-              lHeight,        // GLsizei height
-              GL.GL_RGB,      // GLenum format
-              GL.GL_UNSIGNED_BYTE, // GLenum type
-              lByteBuffer);   // GLvoid *pixels
+      // only read back here, convert and show on the ring's thread
+      if (ring_ == null || ring_.isClosed()) {
+         ring_ = new FrameReadbackRing(1, "ClearVolume snapshot", 
+                 CVSnapshot::showFrame);
+      }
+      // a snapshot the user asked for is worth waiting for the previous one
+      ring_.capture(pGLAutoDrawable.getGL(), 
+              pGLAutoDrawable.getSurfaceWidth(), 
+              pGLAutoDrawable.getSurfaceHeight(), true);
 
       mLastImageTimePoint = System.nanoTime();
 
-      BufferedImage lBufferedImage = RecorderUtils.makeBufferedImage(
-              lWidth, lHeight, lByteBuffer);
-
-      ImagePlus ip = new ImagePlus("3D", lBufferedImage);
-      ip.show();
-
       return true;
    } 
+   
+   /**
+    * Stops the ring's thread once the last snapshot is shown.  A later 
+    * snapshot starts a new one.
+    */
+   public synchronized void close() {
+      if (ring_ != null) {
+         ring_.close();
+      }
+   }
+   
+   private static void showFrame(int lWidth, int lHeight, 
+           ByteBuffer lByteBuffer, long timeNs) {
+      // convert straight into the pixels of an ImageJ RGB image
+      int[] lPixels = new int[lWidth * lHeight];
+      RecorderUtils.convertRGBToARGB(lWidth, lHeight, lByteBuffer, lPixels);
+
+      ImagePlus ip = new ImagePlus("3D", 
+              new ColorProcessor(lWidth, lHeight, lPixels));
+      ip.show();
+   }
   
 }
\ No newline at end of file
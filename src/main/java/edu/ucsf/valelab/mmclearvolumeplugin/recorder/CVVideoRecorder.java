@@ -2,54 +2,224 @@
 package edu.ucsf.valelab.mmclearvolumeplugin.recorder;
 
 import clearvolume.renderer.cleargl.recorder.VideoRecorderBase;
-import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GLAutoDrawable;
+import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ColorProcessor;
-import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
- *
+ * Records frames from the ClearVolume renderer.  By default, frames are 
+ * streamed to a raw file on disk and opened as a virtual stack when recording
+ * stops, so that long recordings do not fill the heap.  With streaming 
+ * switched off, frames are kept in an in-memory ImageStack.
+ * The GL thread only reads frames into a FrameReadbackRing; converting and 
+ * storing them happens on the ring's consumer thread.
+ * Frames identical to the previous one are not stored again, but recorded 
+ * as a repeat in a FrameTimeline, and expanded again when the recording is 
+ * shown.
+ * In triggered mode, frames are not taken at the target frame rate, but 
+ * exactly once per call to captureFrame(), which is used to export movies.
+ * 
  * @author nico
  */
 public class CVVideoRecorder extends VideoRecorderBase {
    
+   // number of frames that can wait for conversion or the disk writer
+   private static final int NR_READBACK_SLOTS = 4;
+   // how often captureFrame asks for a new frame while waiting for one
+   private static final long REDISPLAY_INTERVAL_MS = 50;
+   
+   // only touched on the consumer thread, and after draining the ring
    ImageStack is_;
+   private StreamingFrameWriter writer_;
+   private FrameTimeline timeline_;
+   private long lastHash_;
+   
+   private volatile boolean streaming_ = true;
+   private volatile File streamingDirectory_ = 
+           new File(System.getProperty("java.io.tmpdir"));
+   private volatile boolean suppressDuplicates_ = true;
+   private volatile int hashStep_ = 1;
+   private FrameReadbackRing ring_;
+   
+   private volatile boolean triggered_ = false;
+   private volatile CountDownLatch captureLatch_;
+   private volatile int framesToSkip_;
+   
+   /**
+    * Sets whether frames are written to disk while recording (the default),
+    * or kept in memory.  Takes effect for the next frame.
+    * @param streaming true to write frames to disk
+    */
+   public void setStreaming(boolean streaming) {
+      streaming_ = streaming;
+   }
+   
+   public boolean isStreaming() {
+      return streaming_;
+   }
+   
+   /**
+    * Directory in which streamed recordings are written.  Defaults to the 
+    * system temp directory.
+    * @param directory directory to write recordings to
+    */
+   public void setStreamingDirectory(File directory) {
+      streamingDirectory_ = directory;
+   }
+   
+   /**
+    * Sets whether frames identical to the previous one are stored as a 
+    * repeat of that frame, rather than as a new slice.  On by default.
+    * @param suppress true to store unchanged frames as repeats
+    */
+   public void setSuppressDuplicates(boolean suppress) {
+      suppressDuplicates_ = suppress;
+   }
+   
+   public boolean isSuppressingDuplicates() {
+      return suppressDuplicates_;
+   }
+   
+   /**
+    * Sets how finely frames are compared.  With 1 (the default) every pixel
+    * is compared.  Larger values only compare one pixel per step x step
+    * tile, which is faster, but can miss small changes.
+    * @param step distance in pixels between compared rows and columns
+    */
+   public void setDuplicateHashStep(int step) {
+      hashStep_ = Math.max(1, step);
+   }
+   
+   /**
+    * Sets whether frames are only taken when asked for with captureFrame(),
+    * rather than at the target frame rate.  In this mode no frames are 
+    * dropped: the GL thread waits for the consumer instead.
+    * @param triggered true to only capture frames on request
+    */
+   public void setTriggered(boolean triggered) {
+      triggered_ = triggered;
+   }
+   
+   /**
+    * Captures exactly one frame, drawn after this call started.  The 
+    * recorder needs to be attached to the viewer and in triggered mode.
+    * @param redisplay asks the renderer to draw a frame, called repeatedly
+    *          until the frame was captured
+    * @param timeoutMs maximum time to wait for the frame
+    * @return false if no frame was captured in time
+    * @throws InterruptedException when interrupted while waiting
+    */
+   public boolean captureFrame(Runnable redisplay, long timeoutMs) 
+           throws InterruptedException {
+      final CountDownLatch latch = new CountDownLatch(1);
+      // a frame being drawn right now may predate the latest changes
+      framesToSkip_ = 1;
+      captureLatch_ = latch;
+      final long deadline = System.currentTimeMillis() + timeoutMs;
+      redisplay.run();
+      while (!latch.await(REDISPLAY_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+         if (System.currentTimeMillis() > deadline) {
+            captureLatch_ = null;
+            return false;
+         }
+         redisplay.run();
+      }
+      return true;
+   }
+   
+   /**
+    * @return frames dropped in the current (or last) recording because the 
+    *          consumer could not keep up
+    */
+   public synchronized long getDroppedFrames() {
+      return ring_ == null ? 0 : ring_.getDroppedFrames();
+   }
+   
+   /**
+    * @return frames captured in the current (or last) recording
+    */
+   public synchronized long getCapturedFrames() {
+      return ring_ == null ? 0 : ring_.getCapturedFrames();
+   }
    
    @Override
-   public boolean screenshot(GLAutoDrawable pGLAutoDrawable,
+   public synchronized boolean screenshot(GLAutoDrawable pGLAutoDrawable,
            boolean pAsynchronous) {
 
+      if (triggered_) {
+         return triggeredScreenshot(pGLAutoDrawable);
+      }
+
       if (!super.screenshot(pGLAutoDrawable, pAsynchronous)) {
          return false;
       }
 
-      final int lWidth = pGLAutoDrawable.getSurfaceWidth();
-      final int lHeight = pGLAutoDrawable.getSurfaceHeight();
-
-      ByteBuffer lByteBuffer
-              = ByteBuffer.allocateDirect(lWidth * lHeight * 3)
-              .order(ByteOrder.nativeOrder());
-
-      final GL lGL = pGLAutoDrawable.getGL();
-
-      lGL.glPixelStorei(GL.GL_PACK_ALIGNMENT, 1);
-
-      lGL.glReadPixels(0,     // GLint x
-              0,              // GLint y
-              lWidth,         // GLsizei width
-              lHeight,        // GLsizei height
-              GL.GL_RGB,      // GLenum format
-              GL.GL_UNSIGNED_BYTE, // GLenum type
-              lByteBuffer);   // GLvoid *pixels
-
+      ensureRing();
+      
+      // counts as a frame even when dropped, to keep the frame rate steady
       mLastImageTimePoint = System.nanoTime();
-
-      BufferedImage lBufferedImage = RecorderUtils.makeBufferedImage(
-              lWidth, lHeight, lByteBuffer);
+      
+      return ring_.capture(pGLAutoDrawable.getGL(), 
+              pGLAutoDrawable.getSurfaceWidth(), 
+              pGLAutoDrawable.getSurfaceHeight());
+   } 
+   
+   private void ensureRing() {
+      if (ring_ == null || ring_.isClosed()) {
+         ring_ = new FrameReadbackRing(NR_READBACK_SLOTS, 
+                 "ClearVolume recorder", this::storeFrame);
+      }
+   }
+   
+   private boolean triggeredScreenshot(GLAutoDrawable pGLAutoDrawable) {
+      final CountDownLatch latch = captureLatch_;
+      if (latch == null || !isActive()) {
+         return false;
+      }
+      if (framesToSkip_ > 0) {
+         framesToSkip_--;
+         return false;
+      }
+      ensureRing();
+      mLastImageTimePoint = System.nanoTime();
+      final boolean captured = ring_.capture(pGLAutoDrawable.getGL(), 
+              pGLAutoDrawable.getSurfaceWidth(), 
+              pGLAutoDrawable.getSurfaceHeight(), true);
+      captureLatch_ = null;
+      latch.countDown();
+      return captured;
+   }
+   
+   /**
+    * Runs on the ring's consumer thread.
+    */
+   private void storeFrame(int lWidth, int lHeight, ByteBuffer lByteBuffer,
+           long timeNs) {
+      if (suppressDuplicates_ && isRepeat(lWidth, lHeight, lByteBuffer)) {
+         timeline_.addRepeat(timeNs);
+         return;
+      }
+      if (streaming_) {
+         if (is_ != null) {
+            showStack();
+         }
+         streamFrame(lWidth, lHeight, lByteBuffer, timeNs);
+         return;
+      }
+      if (writer_ != null) {
+         showStream();
+      }
+      
+      // every slice needs its own pixels, but we convert straight into them
+      int[] lPixels = new int[lWidth * lHeight];
+      RecorderUtils.convertRGBToARGB(lWidth, lHeight, lByteBuffer, lPixels);
       
       if (is_ == null) {
          is_ = new ImageStack(lWidth, lHeight);
@@ -58,22 +228,112 @@ public class CVVideoRecorder extends VideoRecorderBase {
          showStack();
          is_ = new ImageStack(lWidth, lHeight);
       }
-      is_.addSlice(new ColorProcessor(lBufferedImage));
-
-      return true;
-   } 
+      is_.addSlice(new ColorProcessor(lWidth, lHeight, lPixels));
+      addStored(timeNs);
+   }
    
-   public void stopRecording() {
+   /**
+    * Checks whether the frame is identical to the last stored one, and 
+    * otherwise remembers its hash.
+    */
+   private boolean isRepeat(int lWidth, int lHeight, ByteBuffer lByteBuffer) {
+      long hash = RecorderUtils.hashFrame(lWidth, lHeight, lByteBuffer, 
+              hashStep_);
+      // a frame going to a new stack or file is never a repeat
+      boolean sameOutput = streaming_ 
+              ? writer_ != null && writer_.getWidth() == lWidth && 
+                 writer_.getHeight() == lHeight
+              : is_ != null && is_.getWidth() == lWidth && 
+                 is_.getHeight() == lHeight;
+      if (sameOutput && timeline_ != null && 
+              timeline_.getNrStored() > 0 && hash == lastHash_) {
+         return true;
+      }
+      lastHash_ = hash;
+      return false;
+   }
+   
+   private void addStored(long timeNs) {
+      if (timeline_ == null) {
+         timeline_ = new FrameTimeline();
+      }
+      timeline_.addStored(timeNs);
+   }
+   
+   private void streamFrame(int lWidth, int lHeight, ByteBuffer lByteBuffer,
+           long timeNs) {
+      try {
+         if (writer_ != null && (writer_.getWidth() != lWidth || 
+                 writer_.getHeight() != lHeight)) {
+            showStream();
+         }
+         if (writer_ == null) {
+            File file = File.createTempFile("ClearVolume-recording-", ".raw", 
+                    streamingDirectory_);
+            writer_ = new StreamingFrameWriter(file, lWidth, lHeight);
+         }
+         writer_.write(lByteBuffer);
+         addStored(timeNs);
+      } catch (IOException ioe) {
+         IJ.log("Failed to write recording: " + ioe.getMessage());
+      }
+   }
+   
+   public synchronized void stopRecording() {
       super.toggleActive();
+      if (ring_ != null) {
+         ring_.close();
+         try {
+            ring_.drain();
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+         }
+         if (ring_.getDroppedFrames() > 0) {
+            IJ.log("ClearVolume recording: dropped " + 
+                    ring_.getDroppedFrames() + " of " + 
+                    (ring_.getCapturedFrames() + ring_.getDroppedFrames()) + 
+                    " frames");
+         }
+      }
       if (is_ != null) {
          showStack();
       }
+      if (writer_ != null) {
+         showStream();
+      }
    }
    
    private void showStack() {
-      ImagePlus ip = new ImagePlus("3D", is_);
-      ip.show();
+      show(is_);
       is_ = null;
    }
+   
+   private void showStream() {
+      StreamingFrameWriter writer = writer_;
+      writer_ = null;
+      try {
+         writer.finish();
+      } catch (IOException ioe) {
+         IJ.log("Failed to write recording: " + ioe.getMessage());
+      }
+      show(writer.openStack());
+   }
+   
+   /**
+    * Shows the stored slices, with repeated frames expanded again.
+    */
+   private void show(ImageStack stored) {
+      FrameTimeline timeline = timeline_;
+      timeline_ = null;
+      if (stored == null || timeline == null) {
+         return;
+      }
+      ImageStack stack = stored;
+      if (timeline.size() > timeline.getNrStored()) {
+         stack = new ExpandedVirtualStack(stored, timeline);
+      }
+      ImagePlus ip = new ImagePlus("3D", stack);
+      ip.show();
+   }
   
 }
@@ -0,0 +1,57 @@
+
+package edu.ucsf.valelab.mmclearvolumeplugin.recorder;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Shows a recording with repeat markers as a stack with one slice per 
+ * frame.  Repeated frames are taken from the stored slice, so they do not 
+ * take any memory or disk space.
+ * 
+ * @author nico
+ */
+public class ExpandedVirtualStack extends VirtualStack {
+   
+   private final ImageStack stored_;
+   private final FrameTimeline timeline_;
+   
+   /**
+    * @param stored stack holding each distinct frame once
+    * @param timeline maps frames to slices of the stored stack
+    */
+   public ExpandedVirtualStack(ImageStack stored, FrameTimeline timeline) {
+      super(stored.getWidth(), stored.getHeight(), null, null);
+      stored_ = stored;
+      timeline_ = timeline;
+   }
+   
+   @Override
+   public int getSize() {
+      return timeline_.size();
+   }
+   
+   @Override
+   public ImageProcessor getProcessor(int n) {
+      return stored_.getProcessor(timeline_.getSlice(n - 1) + 1);
+   }
+   
+   @Override
+   public String getSliceLabel(int n) {
+      return timeline_.getLabel(n - 1);
+   }
+   
+   /**
+    * Removes the frame from the timeline only; the stored slice stays, since
+    * it may be shown by other frames as well.
+    */
+   @Override
+   public void deleteSlice(int n) {
+      if (n < 1 || n > getSize()) {
+         throw new IllegalArgumentException("Argument out of range: " + n);
+      }
+      timeline_.remove(n - 1);
+   }
+   
+}
@@ -0,0 +1,202 @@
+
+package edu.ucsf.valelab.mmclearvolumeplugin.recorder;
+
+import com.jogamp.opengl.GL;
+import ij.IJ;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring of preallocated read back buffers.  On the GL thread, capture() only
+ * copies the frame buffer into the next free slot.  Converting and storing 
+ * the frame is done by the consumer, on a thread of its own.  When all slots 
+ * are waiting for the consumer, the frame is dropped (and counted) rather 
+ * than stalling rendering.
+ * 
+ * @author nico
+ */
+public class FrameReadbackRing {
+   
+   /**
+    * Receives frames on the consumer thread.  The buffer is only valid 
+    * during the call.
+    */
+   public interface FrameConsumer {
+      void consume(int width, int height, ByteBuffer rgb, long timeNs);
+   }
+   
+   private static class Slot {
+      ByteBuffer buffer_;
+      int width_;
+      int height_;
+      long timeNs_;
+   }
+   
+   private final FrameConsumer consumer_;
+   private final int nrSlots_;
+   private final BlockingQueue<Slot> free_;
+   private final BlockingQueue<Slot> filled_;
+   // handed to the consumer thread to make it stop
+   private final Slot endOfStream_ = new Slot();
+   private final Thread consumerThread_;
+   private final AtomicLong captured_ = new AtomicLong(0);
+   private final AtomicLong dropped_ = new AtomicLong(0);
+   private final AtomicLong consumed_ = new AtomicLong(0);
+   private volatile boolean closed_ = false;
+   
+   /**
+    * Creates the slots and starts the consumer thread.
+    * @param nrSlots number of frames that can wait for the consumer
+    * @param name name of the consumer thread
+    * @param consumer called with every captured frame, in order
+    */
+   public FrameReadbackRing(int nrSlots, String name, 
+           FrameConsumer consumer) {
+      consumer_ = consumer;
+      nrSlots_ = nrSlots;
+      free_ = new ArrayBlockingQueue<>(nrSlots);
+      filled_ = new ArrayBlockingQueue<>(nrSlots + 1);
+      for (int i = 0; i < nrSlots; i++) {
+         free_.add(new Slot());
+      }
+      consumerThread_ = new Thread(this::consumeFrames, name);
+      consumerThread_.setDaemon(true);
+      consumerThread_.start();
+   }
+   
+   /**
+    * Reads the current frame buffer into a free slot and hands it to the 
+    * consumer.  Call on the GL thread.  Buffers are only allocated when the
+    * frame size grows.
+    * @param lGL GL context to read from
+    * @param lWidth width of the frame
+    * @param lHeight height of the frame
+    * @return false when no slot was free and the frame was dropped
+    */
+   public boolean capture(GL lGL, int lWidth, int lHeight) {
+      return capture(lGL, lWidth, lHeight, false);
+   }
+   
+   /**
+    * As capture(lGL, lWidth, lHeight), but can wait for the consumer to free
+    * a slot instead of dropping the frame.
+    * @param lGL GL context to read from
+    * @param lWidth width of the frame
+    * @param lHeight height of the frame
+    * @param waitForSlot true to block the GL thread until a slot is free
+    * @return false when the frame was dropped
+    */
+   public boolean capture(GL lGL, int lWidth, int lHeight, 
+           boolean waitForSlot) {
+      Slot slot = null;
+      if (!closed_) {
+         try {
+            slot = waitForSlot ? free_.take() : free_.poll();
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      if (slot == null) {
+         dropped_.incrementAndGet();
+         return false;
+      }
+      final int size = lWidth * lHeight * 3;
+      if (slot.buffer_ == null || slot.buffer_.capacity() < size) {
+         slot.buffer_ = ByteBuffer.allocateDirect(size).
+                 order(ByteOrder.nativeOrder());
+      }
+      slot.buffer_.clear();
+      slot.buffer_.limit(size);
+      
+      lGL.glPixelStorei(GL.GL_PACK_ALIGNMENT, 1);
+
+      lGL.glReadPixels(0,     // GLint x
+              0,              // GLint y
+              lWidth,         // GLsizei width
+              lHeight,        // GLsizei height
+              GL.GL_RGB,      // GLenum format
+              GL.GL_UNSIGNED_BYTE, // GLenum type
+              slot.buffer_);  // GLvoid *pixels
+      
+      slot.width_ = lWidth;
+      slot.height_ = lHeight;
+      slot.timeNs_ = System.nanoTime();
+      captured_.incrementAndGet();
+      filled_.add(slot);
+      return true;
+   }
+   
+   private void consumeFrames() {
+      try {
+         while (true) {
+            Slot slot = filled_.take();
+            if (slot == endOfStream_) {
+               return;
+            }
+            try {
+               consumer_.consume(slot.width_, slot.height_, slot.buffer_,
+                       slot.timeNs_);
+            } catch (RuntimeException re) {
+               IJ.log("Failed to store recorded frame: " + re.getMessage());
+            }
+            consumed_.incrementAndGet();
+            synchronized (this) {
+               free_.add(slot);
+               notifyAll();
+            }
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      }
+   }
+   
+   /**
+    * Waits until the consumer has handled all captured frames.
+    * @throws InterruptedException when interrupted while waiting
+    */
+   public synchronized void drain() throws InterruptedException {
+      while (free_.size() < nrSlots_ && consumerThread_.isAlive()) {
+         wait(100);
+      }
+   }
+   
+   /**
+    * Stops accepting frames.  Frames already captured are still handed to 
+    * the consumer, after which its thread ends.
+    */
+   public void close() {
+      if (!closed_) {
+         closed_ = true;
+         filled_.add(endOfStream_);
+      }
+   }
+   
+   public boolean isClosed() {
+      return closed_;
+   }
+   
+   /**
+    * @return number of frames read into the ring
+    */
+   public long getCapturedFrames() {
+      return captured_.get();
+   }
+   
+   /**
+    * @return number of frames dropped because no slot was free
+    */
+   public long getDroppedFrames() {
+      return dropped_.get();
+   }
+   
+   /**
+    * @return number of frames handed to the consumer
+    */
+   public long getConsumedFrames() {
+      return consumed_.get();
+   }
+   
+}
@@ -0,0 +1,93 @@
+
+package edu.ucsf.valelab.mmclearvolumeplugin.recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of the frames in a recording.  Frames that did not change are
+ * not stored again, but recorded as a repeat of the last stored slice, with 
+ * their own time stamp.
+ * 
+ * @author nico
+ */
+public class FrameTimeline {
+   
+   // stored slice (0-based) shown for every frame
+   private final List<Integer> slices_ = new ArrayList<>();
+   private final List<Long> timesNs_ = new ArrayList<>();
+   private int nrStored_ = 0;
+   
+   /**
+    * Adds a frame that was stored as a new slice.
+    * @param timeNs time at which the frame was captured
+    */
+   public void addStored(long timeNs) {
+      slices_.add(nrStored_);
+      timesNs_.add(timeNs);
+      nrStored_++;
+   }
+   
+   /**
+    * Adds a frame identical to the last stored slice.
+    * @param timeNs time at which the frame was captured
+    */
+   public void addRepeat(long timeNs) {
+      if (nrStored_ == 0) {
+         throw new IllegalStateException("Nothing to repeat");
+      }
+      slices_.add(nrStored_ - 1);
+      timesNs_.add(timeNs);
+   }
+   
+   /**
+    * Removes a frame.  The stored slice it showed is left alone, since 
+    * other frames may still repeat it.
+    * @param frame 0-based frame number
+    */
+   public void remove(int frame) {
+      slices_.remove(frame);
+      timesNs_.remove(frame);
+   }
+   
+   /**
+    * @return number of frames, including repeats
+    */
+   public int size() {
+      return slices_.size();
+   }
+   
+   /**
+    * @return number of slices actually stored
+    */
+   public int getNrStored() {
+      return nrStored_;
+   }
+   
+   /**
+    * @param frame 0-based frame number
+    * @return 0-based stored slice to show for this frame
+    */
+   public int getSlice(int frame) {
+      return slices_.get(frame);
+   }
+   
+   public long getTimeNs(int frame) {
+      return timesNs_.get(frame);
+   }
+   
+   public boolean isRepeat(int frame) {
+      return frame > 0 && slices_.get(frame).equals(slices_.get(frame - 1));
+   }
+   
+   /**
+    * @param frame 0-based frame number
+    * @return time since the start of the recording, marking repeats
+    */
+   public String getLabel(int frame) {
+      String label = String.format("%.3f s", 
+              (timesNs_.get(frame) - timesNs_.get(0)) / 1.0e9);
+      return isRepeat(frame) ? label + " (repeat)" : label;
+   }
+   
+}
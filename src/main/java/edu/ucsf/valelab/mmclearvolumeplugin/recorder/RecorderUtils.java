@@ -2,69 +2,162 @@
 package edu.ucsf.valelab.mmclearvolumeplugin.recorder;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.stream.IntStream;
 
 /**
  *
  * @author nico
  */
 public class RecorderUtils {
-    public static BufferedImage makeBufferedImage(
+   
+   // below this number of rows, splitting the work is not worth it
+   static final int MIN_ROWS_PER_TASK = 64;
+   
+   // one row of RGB bytes per thread, reused between frames
+   private static final ThreadLocal<byte[]> ROW_BUFFER = 
+           ThreadLocal.withInitial(() -> new byte[0]);
+   
+   public static BufferedImage makeBufferedImage(
                                  final int pWidth,
                                  final int pHeight,
                                  final ByteBuffer pByteBuffer)
-  {
-    try
-    {
-      int[] lPixelInts = new int[pWidth * pHeight];
-      
-
-      // Convert RGB bytes to ARGB ints with no transparency. Flip image
-      // vertically by reading the rows of pixels in the byte buffer 
-      // in reverse - (0,0) is at bottom left in OpenGL.
-
-      int p = pWidth * pHeight * 3; // Points to first byte (red) in each row
-      int q; // Index into ByteBuffer
-      int i = 0; // Index into target int[]
-      final int w3 = pWidth * 3; // Number of bytes in each row
-
-      for (int row = 0; row < pHeight; row++)
-      {
-        p -= w3;
-        q = p;
-        for (int col = 0; col < pWidth; col++)
-        {
-          final int iR = pByteBuffer.get(q++);
-          final int iG = pByteBuffer.get(q++);
-          final int iB = pByteBuffer.get(q++);
-
-          lPixelInts[i++] = 0xFF000000 | ((iR & 0x000000FF) << 16)
-                            | ((iG & 0x000000FF) << 8)
-                            | (iB & 0x000000FF);
-        }
-
+   {
+      return makeBufferedImage(pWidth, pHeight, pByteBuffer, null);
+   }
+   
+   /**
+    * Converts RGB bytes read from OpenGL to an ARGB image.
+    * @param pWidth width of the image
+    * @param pHeight height of the image
+    * @param pByteBuffer RGB bytes, bottom row first
+    * @param pReuse image to write into, used when it has the right size and 
+    *          type, otherwise a new image is created
+    * @return image with the converted pixels
+    */
+   public static BufferedImage makeBufferedImage(
+                                 final int pWidth,
+                                 final int pHeight,
+                                 final ByteBuffer pByteBuffer,
+                                 final BufferedImage pReuse)
+   {
+      BufferedImage lBufferedImage = pReuse;
+      if (lBufferedImage == null || lBufferedImage.getWidth() != pWidth ||
+              lBufferedImage.getHeight() != pHeight ||
+              lBufferedImage.getType() != BufferedImage.TYPE_INT_ARGB) {
+         lBufferedImage = new BufferedImage(pWidth, pHeight, 
+                 BufferedImage.TYPE_INT_ARGB);
       }
-
-      BufferedImage lBufferedImage =
-                       new BufferedImage(pWidth,
-                                         pHeight,
-                                         BufferedImage.TYPE_INT_ARGB);
-    
-      lBufferedImage.setRGB(0,
-                            0,
-                            pWidth,
-                            pHeight,
-                            lPixelInts,
-                            0,
-                            pWidth);
-      
+      // write straight into the image's pixels, rather than through setRGB
+      int[] lPixelInts = ((DataBufferInt) lBufferedImage.getRaster().
+              getDataBuffer()).getData();
+      convertRGBToARGB(pWidth, pHeight, pByteBuffer, lPixelInts);
       return lBufferedImage;
-      
-   } catch (final Throwable e)
-   {
-      e.printStackTrace();
    }
-    
-   return null;
- }
+   
+   /**
+    * Convert RGB bytes to ARGB ints with no transparency. Flip image
+    * vertically by reading the rows of pixels in the byte buffer 
+    * in reverse - (0,0) is at bottom left in OpenGL.
+    * Rows are divided over the available cores.
+    * 
+    * @param pWidth width of the image
+    * @param pHeight height of the image
+    * @param pByteBuffer RGB bytes, bottom row first.  Its position is not 
+    *          changed
+    * @param pPixelInts destination, at least pWidth * pHeight long
+    */
+   public static void convertRGBToARGB(final int pWidth, final int pHeight,
+           final ByteBuffer pByteBuffer, final int[] pPixelInts) {
+      convertRGBToARGB(pWidth, pHeight, pByteBuffer, pPixelInts, 
+              Math.min(Runtime.getRuntime().availableProcessors(), 
+                      pHeight / MIN_ROWS_PER_TASK));
+   }
+   
+   /**
+    * As convertRGBToARGB(pWidth, pHeight, pByteBuffer, pPixelInts), with a 
+    * given number of tasks, so that tests do not depend on the number of 
+    * cores.
+    */
+   static void convertRGBToARGB(final int pWidth, final int pHeight,
+           final ByteBuffer pByteBuffer, final int[] pPixelInts, 
+           final int pNrTasks) {
+      final int nrTasks = Math.max(1, Math.min(pNrTasks, pHeight));
+      if (nrTasks == 1) {
+         convertRows(pWidth, pHeight, 0, pHeight, pByteBuffer, pPixelInts);
+         return;
+      }
+      IntStream.range(0, nrTasks).parallel().forEach((int task) -> 
+         convertRows(pWidth, pHeight, task * pHeight / nrTasks, 
+                 (task + 1) * pHeight / nrTasks, pByteBuffer, pPixelInts));
+   }
+   
+   private static void convertRows(final int pWidth, final int pHeight,
+           final int pFirstRow, final int pLastRow, 
+           final ByteBuffer pByteBuffer, final int[] pPixelInts) {
+      final int w3 = pWidth * 3; // Number of bytes in each row
+      byte[] lRow = ROW_BUFFER.get();
+      if (lRow.length < w3) {
+         lRow = new byte[w3];
+         ROW_BUFFER.set(lRow);
+      }
+      // every task needs its own position
+      final ByteBuffer lSource = pByteBuffer.duplicate();
+      for (int row = pFirstRow; row < pLastRow; row++) {
+         lSource.position((pHeight - 1 - row) * w3);
+         lSource.get(lRow, 0, w3);
+         int i = row * pWidth; // Index into target int[]
+         for (int q = 0; q < w3; q += 3) {
+            pPixelInts[i++] = 0xFF000000 | ((lRow[q] & 0xFF) << 16)
+                              | ((lRow[q + 1] & 0xFF) << 8)
+                              | (lRow[q + 2] & 0xFF);
+         }
+      }
+   }
+   
+   /**
+    * Hashes the RGB bytes of a frame, to detect frames that did not change.
+    * With a step of 1, every byte is hashed.  With larger steps, only one 
+    * pixel of every step x step tile is used, which is cheaper but can miss 
+    * small changes.
+    * 
+    * @param pWidth width of the frame
+    * @param pHeight height of the frame
+    * @param pByteBuffer RGB bytes.  Its position is not changed
+    * @param pStep distance in pixels between sampled rows and columns
+    * @return 64-bit hash of the (sampled) frame content
+    */
+   public static long hashFrame(final int pWidth, final int pHeight,
+           final ByteBuffer pByteBuffer, final int pStep) {
+      final ByteBuffer lSource = pByteBuffer.duplicate().
+              order(ByteOrder.LITTLE_ENDIAN);
+      final int w3 = pWidth * 3;
+      long lHash = 0xcbf29ce484222325L;
+      if (pStep <= 1) {
+         lSource.position(0).limit(w3 * pHeight);
+         while (lSource.remaining() >= 8) {
+            lHash = mix(lHash, lSource.getLong());
+         }
+         while (lSource.hasRemaining()) {
+            lHash = mix(lHash, lSource.get());
+         }
+         return lHash;
+      }
+      for (int row = 0; row < pHeight; row += pStep) {
+         for (int col = 0; col < pWidth; col += pStep) {
+            int index = row * w3 + col * 3;
+            lHash = mix(lHash, ((lSource.get(index) & 0xFF) << 16) 
+                    | ((lSource.get(index + 1) & 0xFF) << 8) 
+                    | (lSource.get(index + 2) & 0xFF));
+         }
+      }
+      return lHash;
+   }
+   
+   private static long mix(long pHash, long pValue) {
+      long h = (pHash ^ pValue) * 0x9E3779B97F4A7C15L;
+      return h ^ (h >>> 32);
+   }
 }
@@ -0,0 +1,122 @@
+
+package edu.ucsf.valelab.mmclearvolumeplugin.recorder;
+
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.plugin.FileInfoVirtualStack;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends RGB frames, as read from OpenGL, to a raw file.  Rows are flipped
+ * while writing, so that the file can be opened as an ImageJ RGB stack.
+ * Only a single frame buffer is used, so memory use does not grow with the 
+ * length of the recording.
+ * 
+ * @author nico
+ */
+public class StreamingFrameWriter {
+   
+   private final File file_;
+   private final int width_;
+   private final int height_;
+   private final FileChannel channel_;
+   private final ByteBuffer flipped_;
+   private int nrFrames_ = 0;
+   
+   /**
+    * Creates the file.
+    * @param file file to write to, overwritten if it exists
+    * @param width frame width
+    * @param height frame height
+    * @throws IOException when the file can not be opened
+    */
+   public StreamingFrameWriter(File file, int width, int height) 
+           throws IOException {
+      file_ = file;
+      width_ = width;
+      height_ = height;
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         channel_ = raf.getChannel();
+         channel_.truncate(0);
+         flipped_ = ByteBuffer.allocateDirect(width * height * 3);
+      } catch (IOException | RuntimeException | OutOfMemoryError e) {
+         // do not leak the file handle
+         try {
+            raf.close();
+         } catch (IOException ioe) {
+            e.addSuppressed(ioe);
+         }
+         throw e;
+      }
+   }
+   
+   public int getWidth() {
+      return width_;
+   }
+   
+   public int getHeight() {
+      return height_;
+   }
+   
+   /**
+    * Number of frames written so far.
+    */
+   public int getNrFrames() {
+      return nrFrames_;
+   }
+   
+   /**
+    * Appends a frame to the file.
+    * @param frame RGB bytes, bottom row first.  Its position is not changed
+    * @throws IOException when writing fails
+    */
+   public void write(ByteBuffer frame) throws IOException {
+      final int rowBytes = width_ * 3;
+      flipped_.clear();
+      for (int row = height_ - 1; row >= 0; row--) {
+         ByteBuffer source = frame.duplicate();
+         source.limit((row + 1) * rowBytes);
+         source.position(row * rowBytes);
+         flipped_.put(source);
+      }
+      flipped_.flip();
+      while (flipped_.hasRemaining()) {
+         channel_.write(flipped_);
+      }
+      nrFrames_++;
+   }
+   
+   /**
+    * Closes the file.
+    * @throws IOException when closing fails
+    */
+   public void finish() throws IOException {
+      channel_.close();
+   }
+   
+   /**
+    * Opens the written file as an ImageJ virtual stack, so that frames are
+    * only read from disk when shown.  Call after finish().
+    * @return stack of the written frames, or null if no frames were written
+    */
+   public ImageStack openStack() {
+      if (nrFrames_ == 0) {
+         return null;
+      }
+      FileInfo fi = new FileInfo();
+      fi.fileType = FileInfo.RGB;
+      fi.width = width_;
+      fi.height = height_;
+      fi.nImages = nrFrames_;
+      fi.longOffset = 0;
+      fi.directory = file_.getAbsoluteFile().getParent() + File.separator;
+      fi.fileName = file_.getName();
+      return new FileInfoVirtualStack(fi, false);
+   }
+   
+}
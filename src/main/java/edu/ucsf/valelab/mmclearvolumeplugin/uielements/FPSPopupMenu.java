@@ -55,7 +55,7 @@ public class FPSPopupMenu extends JPopupMenu {
       private static final long serialVersionUID = 5545890245575026993L;
       
       public FPSSlider() {
-         super(1, 30);
+         super(1, ScrollerPanel.MAXFPS);
       }
       
       public void initialize() {
@@ -65,7 +65,7 @@ public class FPSPopupMenu extends JPopupMenu {
          // 21, 41, etc.
          Hashtable<Integer, JLabel> labels = new Hashtable<Integer, JLabel>();
          labels.put(1, new JLabel("1"));
-         for (int i = 5; i < 31; i += 5) {
+         for (int i = 10; i <= ScrollerPanel.MAXFPS; i += 10) {
             labels.put(i, new JLabel(String.valueOf(i)));
          }
          setLabelTable(labels);
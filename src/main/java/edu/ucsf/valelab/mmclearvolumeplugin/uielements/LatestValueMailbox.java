@@ -0,0 +1,73 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.uielements;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import javax.swing.SwingUtilities;
+
+/**
+ * Holds at most one value.  Publishing a new value replaces the one that 
+ * was not delivered yet.  Values are delivered on the EDT, so no thread of 
+ * our own is waiting (or polling) when nothing is published, and all 
+ * mailboxes share the same thread.
+ * 
+ * @author nico
+ * @param <T> type of the values
+ */
+public final class LatestValueMailbox<T> {
+   
+   private final AtomicReference<T> slot_ = new AtomicReference<>();
+   private final Consumer<T> consumer_;
+   private volatile boolean closed_ = false;
+   
+   /**
+    * @param consumer called on the EDT with the latest published value
+    */
+   public LatestValueMailbox(Consumer<T> consumer) {
+      consumer_ = consumer;
+   }
+   
+   /**
+    * Publishes a value.  Can be called from any thread.
+    * @param value value to be delivered, not null
+    */
+   public void publish(T value) {
+      if (closed_) {
+         return;
+      }
+      // only the first value after a delivery needs to schedule one
+      if (slot_.getAndSet(value) == null) {
+         SwingUtilities.invokeLater(this::deliver);
+      }
+   }
+   
+   private void deliver() {
+      T value = slot_.getAndSet(null);
+      if (value != null && !closed_) {
+         consumer_.accept(value);
+      }
+   }
+   
+   /**
+    * Drops the pending value, and ignores all values published from now on.
+    */
+   public void close() {
+      closed_ = true;
+      slot_.set(null);
+   }
+   
+}
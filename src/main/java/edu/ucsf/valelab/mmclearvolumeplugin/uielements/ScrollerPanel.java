@@ -23,6 +23,7 @@ package edu.ucsf.valelab.mmclearvolumeplugin.uielements;
 import com.google.common.eventbus.Subscribe;
 import edu.ucsf.valelab.mmclearvolumeplugin.CVViewer;
 import edu.ucsf.valelab.mmclearvolumeplugin.events.CanvasDrawCompleteEvent;
+import edu.ucsf.valelab.mmclearvolumeplugin.events.ImageIngestDispatcher;
 
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
@@ -30,13 +31,15 @@ import java.awt.event.AdjustmentEvent;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.function.Consumer;
 
 import net.miginfocom.swing.MigLayout;
 
@@ -51,7 +54,7 @@ import org.micromanager.Studio;
 
 import org.micromanager.data.Coords;
 import org.micromanager.data.Datastore;
-import org.micromanager.data.NewImageEvent;
+import org.micromanager.data.Image;
 import org.micromanager.display.DisplaySettings;
 import org.micromanager.display.NewDisplaySettingsEvent;
 import org.micromanager.display.DataViewer;
@@ -69,21 +72,33 @@ public class ScrollerPanel extends JPanel {
    private final Studio studio_;
    private final Datastore store_;
    private final DataViewer display_;
-   private final Thread updateThread_;
-   private final LinkedBlockingQueue<Coords> updateQueue_;
-   private final AtomicBoolean shouldStopUpdates_;
+   private final LatestValueMailbox<Coords> updateMailbox_;
+   private static final long INGEST_WINDOW_MS = 20;
+   private final ImageIngestDispatcher ingestDispatcher_;
+   private final boolean ownsDispatcher_;
+   private final Consumer<List<Image>> imageListener_ = this::onNewImages;
 
    private final HashMap<String, AxisState> axisToState_;
    private final HashMap<String, Integer> axisToSavedPosition_;
    private JButton fpsButton_;
    private final FPSPopupMenu fpsMenu_;
 
-   private Timer snapbackTimer_;
-   private Timer animationTimer_;
+   // Animation ticks and snapbacks of all panels run on a single thread
+   private static final ScheduledExecutorService SCHEDULER = 
+           Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+      Thread t = new Thread(r, "ClearVolume scroller panel animation");
+      t.setDaemon(true);
+      return t;
+   });
+   // both tasks are used from several threads, and guarded by this
+   private ScheduledFuture<?> snapbackTask_;
+   private ScheduledFuture<?> animationTask_;
    private double animationFPS_ = 3.0;
    private int animationStepSize_ = 0;
-   private long lastAnimationTimeMs_ = 0;
-   private static final int MAXFPS = 30;
+   // System.nanoTime() at which the next animation frame is due, 0 when 
+   // the animation is not running
+   private long nextFrameNs_ = 0;
+   public static final int MAXFPS = 60;
    
    private final String CV_ANIMATION_FPS = "Animation fps";
 
@@ -98,8 +113,7 @@ public class ScrollerPanel extends JPanel {
       store_ = store;
       display_ = display;
 
-      updateQueue_ = new LinkedBlockingQueue<>();
-      shouldStopUpdates_ = new AtomicBoolean(false);
+      updateMailbox_ = new LatestValueMailbox<>(this::applyScrollbarPositions);
 
       axisToState_ = new HashMap<>();
       axisToSavedPosition_ = new HashMap<>();
@@ -125,6 +139,13 @@ public class ScrollerPanel extends JPanel {
       String[] axisOrder = store_.getSummaryMetadata().getAxisOrder();
       if (axisOrder != null) {
          axes = new ArrayList<>(Arrays.asList(axisOrder));
+         // make sure we do not miss axes (such as stage position) that are 
+         // not listed in the axis order
+         for (String axis : store_.getAxes()) {
+            if (!axes.contains(axis)) {
+               axes.add(axis);
+            }
+         }
       }
       else {
          axes = new ArrayList<>(store_.getAxes());
@@ -136,13 +157,16 @@ public class ScrollerPanel extends JPanel {
          }
       }
 
-      // Spin up a new thread to handle changes to the scrollbar positions.
-      // See runUpdateThread() for more information.
-      updateThread_ = new Thread(() -> {
-         runUpdateThread();
-      }, "ClearVolume Scrollbar panel update thread");
-      updateThread_.start();
-      store_.registerForEvents(this);
+      if (display_ instanceof CVViewer && 
+              ((CVViewer) display_).getIngestDispatcher() != null) {
+         ingestDispatcher_ = ((CVViewer) display_).getIngestDispatcher();
+         ownsDispatcher_ = false;
+      } else {
+         ingestDispatcher_ = new ImageIngestDispatcher(studio_, store_, 
+                 INGEST_WINDOW_MS);
+         ownsDispatcher_ = true;
+      }
+      ingestDispatcher_.addListener(imageListener_);
       display_.registerForEvents(this);
    }
 
@@ -224,13 +248,25 @@ public class ScrollerPanel extends JPanel {
    }
    
    public void stopUpdateThread() {
-      shouldStopUpdates_.set(true);      
+      updateMailbox_.close();
+      ingestDispatcher_.removeListener(imageListener_);
+      if (ownsDispatcher_) {
+         ingestDispatcher_.close();
+      }
       // also stop all ongoing animations
       // the alternative would be to keep track of all viewers that we control,
       // instead only animate the active viewer
       for (String axis : axisToState_.keySet()) {
          axisToState_.get(axis).isAnimated_ = false;
       }
+      synchronized (this) {
+         if (animationTask_ != null) {
+            animationTask_.cancel(false);
+         }
+         if (snapbackTask_ != null) {
+            snapbackTask_.cancel(false);
+         }
+      }
    }
 
    /**
@@ -341,10 +377,7 @@ public class ScrollerPanel extends JPanel {
    @Subscribe
    public void onPixelsSet(PixelsSetEvent event) {
       Coords coords = event.getImage().getCoords();
-      try {
-         updateQueue_.put(coords);
-      }
-      catch (InterruptedException e) {} // Ignore it.
+      updateMailbox_.publish(coords);
    }
    */
 
@@ -353,72 +386,62 @@ public class ScrollerPanel extends JPanel {
     * images. However, this takes time, and generates Swing events for each
     * scrollbar (which we don't do anything with, but nonetheless they can
     * clog up the EDT). Since images can change rapidly, we don't want to
-    * change the scrollbars for each and every new image. Hence this
-    * thread-and-queue system, which ignores image updates that we can't
-    * respond to quickly enough.
+    * change the scrollbars for each and every new image. Hence the mailbox,
+    * which only keeps the latest coordinates we did not get to yet.  
+    * Called on the EDT.
     */
-   private void runUpdateThread() {
-      while(!shouldStopUpdates_.get()) {
-         try {
-            // Limit ourselves to about 30 FPS.
-            Thread.sleep(1000/MAXFPS);
-         }
-         catch (InterruptedException e) {} // Ignore it.
-         Coords coords = null;
-         // Chew through the queue and take only the last item.
-         while (!updateQueue_.isEmpty()) {
-            coords = updateQueue_.poll();
-         }
-         if (coords == null) {
-            continue;
-         }
-         synchronized(this) {
-            shouldPostEvents_ = false;
-            for (String axis : axisToState_.keySet()) {
-               JScrollBar scroller = axisToState_.get(axis).scrollbar_;
-               if (scroller.getValue() != coords.getIndex(axis)) {
-                  scroller.setValue(coords.getIndex(axis));
-               }
+   private void applyScrollbarPositions(Coords coords) {
+      synchronized(this) {
+         shouldPostEvents_ = false;
+         for (String axis : axisToState_.keySet()) {
+            JScrollBar scroller = axisToState_.get(axis).scrollbar_;
+            if (scroller.getValue() != coords.getIndex(axis)) {
+               scroller.setValue(coords.getIndex(axis));
             }
-            shouldPostEvents_ = true;
          }
+         shouldPostEvents_ = true;
       }
    }
 
    /**
-    * A new image has arrived; update our scrollbar maxima and positions. Add
-    * new scrollbars as needed.
-    * @param event
+    * New images have arrived; update our scrollbar maxima and positions. Add
+    * new scrollbars as needed.  Called with batches of images on the ingest 
+    * thread.
+    * @param images newly arrived images
     */
-   @Subscribe
-   public void onNewImage(NewImageEvent event) {
+   private void onNewImages(List<Image> images) {
       try {
-         Coords coords = event.getImage().getCoords();
-         Coords.CoordsBuilder displayedBuilder = coords.copy();
-         boolean didAddScrollers = false;
-         for (String axis : store_.getAxes()) {
-            int newPos = coords.getIndex(axis);
-            didAddScrollers = updateScrollbar(axis, newPos) || didAddScrollers;
-            if (axisToState_.containsKey(axis)) {
-               displayedBuilder.index(axis,
-                     axisToState_.get(axis).scrollbar_.getValue());
+         // one update per axis, to the highest index in this batch
+         HashMap<String, Integer> newPositions = new HashMap<>();
+         for (Image image : images) {
+            Coords coords = image.getCoords();
+            for (String axis : coords.getAxes()) {
+               int pos = coords.getIndex(axis);
+               Integer known = newPositions.get(axis);
+               if (known == null || pos > known) {
+                  newPositions.put(axis, pos);
+               }
             }
          }
+         boolean didAddScrollers = false;
+         for (String axis : newPositions.keySet()) {
+            didAddScrollers = updateScrollbar(axis, newPositions.get(axis)) || 
+                    didAddScrollers;
+         }
          if (didAddScrollers) {
             // Ensure new scrollers get displayed properly.
             //display_.postEvent(new LayoutChangedEvent());
          }
-         display_.setDisplayedImageTo(displayedBuilder.build());
+         // The viewer redraws by itself once a stack is complete, so we 
+         // no longer ask it to draw for every image
 
          // Set up snapping back to our current positions. 
-         if (snapbackTimer_ != null) {
-            snapbackTimer_.cancel();
-         }
-         if (axisToSavedPosition_.size() > 0) {
-            snapbackTimer_ = new Timer("Scroller panel snapback");
-            TimerTask task = new TimerTask() {
-               @Override
-               public void run() {
+         synchronized (this) {
+            if (snapbackTask_ != null) {
+               snapbackTask_.cancel(false);
+            }
+            if (axisToSavedPosition_.size() > 0) {
+               snapbackTask_ = SCHEDULER.schedule(() -> {
                   shouldPostEvents_ = false;
                   for (String axis : axisToSavedPosition_.keySet()) {
                      int pos = axisToSavedPosition_.get(axis);
@@ -426,9 +449,8 @@ public class ScrollerPanel extends JPanel {
                   }
                   shouldPostEvents_ = true;
                   //postDrawEvent();
-               }
-            };
-            snapbackTimer_.schedule(task, 500);
+               }, 500, TimeUnit.MILLISECONDS);
+            }
          }
       }
       catch (Exception e) {
@@ -514,8 +536,8 @@ public class ScrollerPanel extends JPanel {
     * Move another step forward in our animation (assuming we are animated).
     */
    private synchronized void updateAnimation() {
-      if (animationTimer_ != null) {
-         animationTimer_.cancel();
+      if (animationTask_ != null) {
+         animationTask_.cancel(false);
       }
 
       boolean amAnimated = false;
@@ -527,49 +549,40 @@ public class ScrollerPanel extends JPanel {
       }
       if (!amAnimated) {
          // No animation is currently running.
-         lastAnimationTimeMs_ = 0;
+         nextFrameNs_ = 0;
          return;
       }
 
       // Calculate the update rate and the number of images to step forward
-      // by for each animation tick. We cap at an update rate of 30FPS;
+      // by for each animation tick. We cap at an update rate of MAXFPS;
       // past that, we step forward by more than one image per step to
       // compensate.
-      int updateFPS = Math.min(MAXFPS, (int) animationFPS_);
+      final double updateFPS = Math.min(MAXFPS, animationFPS_);
       animationStepSize_ = (int) Math.max(1,
-            Math.round(updateFPS * animationFPS_ / 1000.0));
-
-      animationTimer_ = new Timer("Scroller panel animation");
+            Math.round(animationFPS_ / updateFPS));
+      final long frameNs = (long) (TimeUnit.SECONDS.toNanos(1) / updateFPS);
+
+      // Run right away the first time, and otherwise at the frame's deadline.
+      // Deadlines advance by whole frames, so that the frame rate does not 
+      // drift, unless drawing fell behind by more than a frame.
+      final long now = System.nanoTime();
+      if (nextFrameNs_ == 0 || now - nextFrameNs_ > frameNs) {
+         nextFrameNs_ = now;
+      }
+      final long delayNs = Math.max(0, nextFrameNs_ - now);
+      nextFrameNs_ += frameNs;
       // This task simply pushes the scrollbars forward and then requests
       // drawing at the new coordinates.
-      TimerTask task = new TimerTask() {
-         @Override
-         public void run() {
-            lastAnimationTimeMs_ = System.currentTimeMillis();
-            shouldPostEvents_ = false;
-            for (String axis : axisToState_.keySet()) {
-                if (axisToState_.get(axis).isAnimated_) {
-                    advancePosition(axis, animationStepSize_);
-                }
-            }
-            shouldPostEvents_ = true;
-            postDrawEvent();
+      animationTask_ = SCHEDULER.schedule(() -> {
+         shouldPostEvents_ = false;
+         for (String axis : axisToState_.keySet()) {
+             if (axisToState_.get(axis).isAnimated_) {
+                 advancePosition(axis, animationStepSize_);
+             }
          }
-      };
-
-      // Schedule the update to happen either immediately (for the first time
-      // we run) or a set time after the last time we ran (for continuous
-      // running).
-      if (lastAnimationTimeMs_ == 0) {
-         animationTimer_.schedule(task, 0);
-      }
-      else {
-         // Target delay between updates
-         int delayMs = 1000 / updateFPS;
-         long sleepTime = Math.max(0,
-               delayMs - (System.currentTimeMillis() - lastAnimationTimeMs_));
-         animationTimer_.schedule(task, sleepTime);
-      }
+         shouldPostEvents_ = true;
+         postDrawEvent();
+      }, delayNs, TimeUnit.NANOSECONDS);
    }
 
    /**
@@ -0,0 +1,439 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits a volume that is too large to hand to the renderer in one piece 
+ * into fixed-size bricks at a reduced resolution level.  Only the region of
+ * bricks that intersect the current clip box is read and handed to the 
+ * renderer, and the level is chosen such that this region fits, so that the
+ * resolution improves as the clip box shrinks.
+ * Bricks keep track of their bounds, and of the pixel range (per channel) 
+ * of the data last written into them.
+ * 
+ * All brick coordinates are in voxels of the reduced resolution level.
+ * 
+ * @author nico
+ */
+public class BrickGrid {
+   
+   // edge length of a brick, in voxels at the reduced level
+   public static final int BRICK_SIZE = 256;
+   
+   private final int width_, height_, depth_;
+   private final int factor_;
+   private final int levelWidth_, levelHeight_, levelDepth_;
+   private final int nrX_, nrY_, nrZ_;
+   private final int nrChannels_;
+   private final Brick[] bricks_;
+   
+   /**
+    * @param width full resolution width in pixels
+    * @param height full resolution height in pixels
+    * @param depth number of z planes at full resolution
+    * @param factor downsampling factor of the level we are showing
+    * @param nrChannels number of channels
+    */
+   public BrickGrid(int width, int height, int depth, int factor, 
+           int nrChannels) {
+      width_ = width;
+      height_ = height;
+      depth_ = depth;
+      factor_ = factor;
+      nrChannels_ = nrChannels;
+      levelWidth_ = VolumeDownsampler.reducedSize(width, factor);
+      levelHeight_ = VolumeDownsampler.reducedSize(height, factor);
+      levelDepth_ = VolumeDownsampler.reducedDepth(depth, factor);
+      nrX_ = (levelWidth_ + BRICK_SIZE - 1) / BRICK_SIZE;
+      nrY_ = (levelHeight_ + BRICK_SIZE - 1) / BRICK_SIZE;
+      nrZ_ = (levelDepth_ + BRICK_SIZE - 1) / BRICK_SIZE;
+      bricks_ = new Brick[nrX_ * nrY_ * nrZ_];
+      for (int z = 0; z < nrZ_; z++) {
+         for (int y = 0; y < nrY_; y++) {
+            for (int x = 0; x < nrX_; x++) {
+               bricks_[(z * nrY_ + y) * nrX_ + x] = new Brick(
+                       x * BRICK_SIZE, y * BRICK_SIZE, z * BRICK_SIZE,
+                       Math.min(levelWidth_, (x + 1) * BRICK_SIZE),
+                       Math.min(levelHeight_, (y + 1) * BRICK_SIZE),
+                       Math.min(levelDepth_, (z + 1) * BRICK_SIZE),
+                       nrChannels);
+            }
+         }
+      }
+   }
+   
+   /**
+    * Finds the smallest power of 2 by which a volume needs to be reduced 
+    * (in x, y, and z) to fit within the given number of voxels.
+    * @return downsampling factor, 1 if the volume fits as is
+    */
+   public static int levelFor(int width, int height, int depth, 
+           long maxVoxels) {
+      int factor = 1;
+      while ((long) VolumeDownsampler.reducedSize(width, factor) * 
+              VolumeDownsampler.reducedSize(height, factor) * 
+              VolumeDownsampler.reducedDepth(depth, factor) > maxVoxels) {
+         factor *= 2;
+      }
+      return factor;
+   }
+   
+   /**
+    * Finds the smallest power of 2 by which a volume needs to be reduced 
+    * for the bricks that intersect the clip box to fit within the given 
+    * number of voxels.  The smaller the clip box, the finer the level.
+    * @param clipBox as used by ClearVolume, see bricksInClipBox
+    * @return downsampling factor, 1 if the clipped part fits as is
+    */
+   public static int levelFor(int width, int height, int depth, 
+           float[] clipBox, long maxVoxels) {
+      int factor = 1;
+      while (true) {
+         int[] sizes = {VolumeDownsampler.reducedSize(width, factor), 
+            VolumeDownsampler.reducedSize(height, factor), 
+            VolumeDownsampler.reducedDepth(depth, factor)};
+         int[] bounds = voxelBounds(clipBox, sizes);
+         long voxels = (long) (bounds[1] - bounds[0]) * 
+                 (bounds[3] - bounds[2]) * (bounds[5] - bounds[4]);
+         if (voxels <= maxVoxels || 
+                 (sizes[0] == 1 && sizes[1] == 1 && sizes[2] == 1)) {
+            return factor;
+         }
+         factor *= 2;
+      }
+   }
+   
+   /**
+    * Grid for the same volume at another resolution level.
+    * @param factor downsampling factor of the level
+    * @return new grid, or this one if it is at the requested level
+    */
+   public BrickGrid atLevel(int factor) {
+      if (factor == factor_) {
+         return this;
+      }
+      return new BrickGrid(width_, height_, depth_, factor, nrChannels_);
+   }
+   
+   /**
+    * @return number of z planes at full resolution
+    */
+   public int getDepth() {
+      return depth_;
+   }
+   
+   public int getFactor() {
+      return factor_;
+   }
+   
+   public int getLevelWidth() {
+      return levelWidth_;
+   }
+   
+   public int getLevelHeight() {
+      return levelHeight_;
+   }
+   
+   public int getLevelDepth() {
+      return levelDepth_;
+   }
+   
+   public List<Brick> getBricks() {
+      return Arrays.asList(bricks_);
+   }
+   
+   /**
+    * Returns the bricks that intersect the given clip box.
+    * @param clipBox as used by ClearVolume: xmin, xmax, ymin, ymax, zmin, 
+    *          zmax, each ranging from -1 to 1
+    * @return list of bricks, in z, y, x order
+    */
+   public List<Brick> bricksInClipBox(float[] clipBox) {
+      return getRegion(clipBox).getBricks();
+   }
+   
+   /**
+    * Region made up of the bricks that intersect the given clip box.
+    * @param clipBox as used by ClearVolume, see bricksInClipBox
+    */
+   public Region getRegion(float[] clipBox) {
+      return new Region(this, voxelBounds(clipBox, 
+              new int[] {levelWidth_, levelHeight_, levelDepth_}));
+   }
+   
+   /**
+    * Source z plane (at full resolution) for a z plane of our level.
+    */
+   public int sourcePlane(int levelZ) {
+      return Math.min(depth_ - 1, levelZ * factor_);
+   }
+   
+   /**
+    * Copies the part of a full resolution plane that falls within a brick
+    * into the volume of a region, reducing it to 8 bits when a look-up table
+    * is given, and updates the brick's pixel range for this channel.
+    * 
+    * @param region region of this grid held by dest
+    * @param brick brick to be filled, within region
+    * @param ch channel
+    * @param levelZ z plane of the level volume, within the brick
+    * @param src full resolution pixels (Byte- or ShortBuffer)
+    * @param dest volume of the region for this channel
+    * @param bytesPerVoxel bytes per voxel in dest
+    * @param lut look-up table for 16 to 8 bit reduction, or null
+    */
+   public void fillBrickPlane(Region region, Brick brick, int ch, int levelZ, 
+           Buffer src, ByteBuffer dest, int bytesPerVoxel, ChannelLut lut) {
+      final int[] r = region.bounds_;
+      final int regionWidth = r[1] - r[0];
+      final int regionHeight = r[3] - r[2];
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int y = brick.y0_; y < brick.y1_; y++) {
+         int srcRow = Math.min(height_ - 1, y * factor_) * width_;
+         int destIndex = (((levelZ - r[4]) * regionHeight + y - r[2]) * 
+                 regionWidth + brick.x0_ - r[0]) * bytesPerVoxel;
+         for (int x = brick.x0_; x < brick.x1_; x++) {
+            int srcIndex = srcRow + Math.min(width_ - 1, x * factor_);
+            int value;
+            if (src instanceof ShortBuffer) {
+               value = ((ShortBuffer) src).get(srcIndex) & 0xFFFF;
+               if (lut != null) {
+                  dest.put(destIndex, lut.map(value));
+               } else {
+                  dest.putShort(destIndex, (short) value);
+               }
+            } else {
+               value = ((ByteBuffer) src).get(srcIndex) & 0xFF;
+               dest.put(destIndex, (byte) value);
+            }
+            destIndex += bytesPerVoxel;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+         }
+      }
+      if (levelZ == brick.z0_) {
+         brick.resetRange(ch);
+      }
+      brick.updateRange(ch, min, max);
+   }
+   
+   /**
+    * Indices of the first and one beyond the last brick along x, y, and z
+    * that intersect the clip box, in a level of the given size.
+    */
+   private static int[] brickRange(float[] clipBox, int[] sizes) {
+      int[] range = new int[6];
+      for (int axis = 0; axis < 3; axis++) {
+         int count = (sizes[axis] + BRICK_SIZE - 1) / BRICK_SIZE;
+         double lo = (clipBox[2 * axis] + 1.0) / 2.0 * sizes[axis];
+         double hi = (clipBox[2 * axis + 1] + 1.0) / 2.0 * sizes[axis];
+         range[2 * axis] = Math.max(0, 
+                 Math.min(count - 1, (int) Math.floor(lo / BRICK_SIZE)));
+         range[2 * axis + 1] = Math.max(range[2 * axis] + 1, 
+                 Math.min(count, (int) Math.ceil(hi / BRICK_SIZE)));
+      }
+      return range;
+   }
+   
+   /**
+    * Voxel bounds (xmin, xmax, ymin, ymax, zmin, zmax, max exclusive) of the
+    * bricks that intersect the clip box, in a level of the given size.
+    */
+   private static int[] voxelBounds(float[] clipBox, int[] sizes) {
+      int[] bounds = brickRange(clipBox, sizes);
+      for (int axis = 0; axis < 3; axis++) {
+         bounds[2 * axis] *= BRICK_SIZE;
+         bounds[2 * axis + 1] = Math.min(sizes[axis], 
+                 bounds[2 * axis + 1] * BRICK_SIZE);
+      }
+      return bounds;
+   }
+   
+   /**
+    * Block of bricks of a grid.  The renderer is handed the volume of a 
+    * region as if it were the complete volume, so that the resolution is 
+    * spent on the part within the clip box.
+    * Bounds are in voxels of the grid's level: xmin, xmax, ymin, ymax, zmin,
+    * zmax, each max excluded.
+    */
+   public static final class Region {
+      private final BrickGrid grid_;
+      private final int[] bounds_;
+      
+      Region(BrickGrid grid, int[] bounds) {
+         grid_ = grid;
+         bounds_ = bounds;
+      }
+      
+      public BrickGrid getGrid() {
+         return grid_;
+      }
+      
+      public int[] getBounds() {
+         return bounds_.clone();
+      }
+      
+      public int getWidth() {
+         return bounds_[1] - bounds_[0];
+      }
+      
+      public int getHeight() {
+         return bounds_[3] - bounds_[2];
+      }
+      
+      public int getDepth() {
+         return bounds_[5] - bounds_[4];
+      }
+      
+      /**
+       * Whether this region holds the complete volume of its level.
+       */
+      public boolean isWhole() {
+         return getWidth() == grid_.levelWidth_ && 
+                 getHeight() == grid_.levelHeight_ && 
+                 getDepth() == grid_.levelDepth_;
+      }
+      
+      /**
+       * Whether other is at the same level, and lies within this region, i.e.,
+       * whether the volume of this region can be shown instead of other's.
+       */
+      public boolean covers(Region other) {
+         if (other == null || other.grid_.factor_ != grid_.factor_) {
+            return false;
+         }
+         for (int axis = 0; axis < 3; axis++) {
+            if (other.bounds_[2 * axis] < bounds_[2 * axis] || 
+                    other.bounds_[2 * axis + 1] > bounds_[2 * axis + 1]) {
+               return false;
+            }
+         }
+         return true;
+      }
+      
+      /**
+       * Maps a clip box of the complete volume onto this region, as the 
+       * renderer sees the region as the complete volume.
+       */
+      public float[] toRendererClipBox(float[] clipBox) {
+         final int[] sizes = {grid_.levelWidth_, grid_.levelHeight_, 
+            grid_.levelDepth_};
+         float[] result = new float[6];
+         for (int i = 0; i < 6; i++) {
+            final int axis = i / 2;
+            double voxel = (clipBox[i] + 1.0) / 2.0 * sizes[axis];
+            double relative = (voxel - bounds_[2 * axis]) / 
+                    (bounds_[2 * axis + 1] - bounds_[2 * axis]);
+            result[i] = (float) Math.max(-1.0, 
+                    Math.min(1.0, relative * 2.0 - 1.0));
+         }
+         return result;
+      }
+      
+      /**
+       * @return the bricks of this region, in z, y, x order
+       */
+      public List<Brick> getBricks() {
+         List<Brick> result = new ArrayList<>();
+         for (int z = bounds_[4] / BRICK_SIZE; 
+                 z * BRICK_SIZE < bounds_[5]; z++) {
+            for (int y = bounds_[2] / BRICK_SIZE; 
+                    y * BRICK_SIZE < bounds_[3]; y++) {
+               for (int x = bounds_[0] / BRICK_SIZE; 
+                       x * BRICK_SIZE < bounds_[1]; x++) {
+                  result.add(grid_.bricks_[(z * grid_.nrY_ + y) * 
+                          grid_.nrX_ + x]);
+               }
+            }
+         }
+         return result;
+      }
+   }
+   
+   /**
+    * Part of the level volume.  Bounds include the start and exclude the 
+    * end coordinate.
+    */
+   public static final class Brick {
+      final int x0_, y0_, z0_, x1_, y1_, z1_;
+      private final int[] min_;
+      private final int[] max_;
+      
+      Brick(int x0, int y0, int z0, int x1, int y1, int z1, int nrChannels) {
+         x0_ = x0;
+         y0_ = y0;
+         z0_ = z0;
+         x1_ = x1;
+         y1_ = y1;
+         z1_ = z1;
+         min_ = new int[nrChannels];
+         max_ = new int[nrChannels];
+         Arrays.fill(min_, Integer.MAX_VALUE);
+         Arrays.fill(max_, Integer.MIN_VALUE);
+      }
+      
+      public int getZStart() {
+         return z0_;
+      }
+      
+      public int getZEnd() {
+         return z1_;
+      }
+      
+      public int[] getBounds() {
+         return new int[] {x0_, y0_, z0_, x1_, y1_, z1_};
+      }
+      
+      /**
+       * Lowest pixel value seen in this brick for the given channel, 
+       * Integer.MAX_VALUE if the brick was never filled.
+       */
+      public synchronized int getMin(int ch) {
+         return min_[ch];
+      }
+      
+      /**
+       * Highest pixel value seen in this brick for the given channel, 
+       * Integer.MIN_VALUE if the brick was never filled.
+       */
+      public synchronized int getMax(int ch) {
+         return max_[ch];
+      }
+      
+      /**
+       * Called for every plane filled; the range starts over when the 
+       * first plane of the brick is filled.
+       */
+      synchronized void updateRange(int ch, int min, int max) {
+         min_[ch] = Math.min(min_[ch], min);
+         max_[ch] = Math.max(max_[ch], max);
+      }
+      
+      synchronized void resetRange(int ch) {
+         min_[ch] = Integer.MAX_VALUE;
+         max_[ch] = Integer.MIN_VALUE;
+      }
+   }
+   
+}
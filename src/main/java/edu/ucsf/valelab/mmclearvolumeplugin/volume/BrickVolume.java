@@ -0,0 +1,40 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import coremem.fragmented.FragmentedMemory;
+
+/**
+ * Volume of a single channel assembled for a region of a brick grid.  
+ * Remembers the region, so that whoever hands it to the renderer knows its 
+ * dimensions and where it lies within the complete volume.
+ * 
+ * @author nico
+ */
+public class BrickVolume extends FragmentedMemory {
+   
+   private final BrickGrid.Region region_;
+   
+   public BrickVolume(BrickGrid.Region region) {
+      super();
+      region_ = region;
+   }
+   
+   public BrickGrid.Region getRegion() {
+      return region_;
+   }
+   
+}
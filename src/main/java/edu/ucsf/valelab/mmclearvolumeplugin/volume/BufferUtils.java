@@ -0,0 +1,113 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.lang.management.ManagementFactory;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Static helpers to move pixel data between the Buffers held by 
+ * Micro-Manager images and the direct ByteBuffers we hand to ClearVolume.
+ * 
+ * @author nico
+ */
+public class BufferUtils {
+   
+   /**
+    * Allocates a direct ByteBuffer in native byte order, which is the order 
+    * ClearVolume expects.
+    * @param nrBytes size of the buffer
+    * @return newly allocated direct ByteBuffer
+    */
+   public static ByteBuffer allocate(final long nrBytes) {
+      if (nrBytes > Integer.MAX_VALUE) {
+         throw new IllegalArgumentException(
+                 "Volume too large for a single buffer: " + nrBytes + " bytes");
+      }
+      return ByteBuffer.allocateDirect((int) nrBytes).
+              order(ByteOrder.nativeOrder());
+   }
+   
+   /**
+    * Maximum amount of direct memory this JVM hands out, as set with 
+    * -XX:MaxDirectMemorySize.  Without that option, the JVM allows as much 
+    * direct memory as the maximum heap size.
+    * @return limit in bytes
+    */
+   public static long maxDirectMemory() {
+      final String option = "-XX:MaxDirectMemorySize=";
+      for (String arg : 
+              ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+         if (arg.startsWith(option)) {
+            String value = arg.substring(option.length()).toLowerCase();
+            int shift = 0;
+            switch (value.charAt(value.length() - 1)) {
+               case 't': shift = 40; break;
+               case 'g': shift = 30; break;
+               case 'm': shift = 20; break;
+               case 'k': shift = 10; break;
+               default: break;
+            }
+            if (shift > 0) {
+               value = value.substring(0, value.length() - 1);
+            }
+            try {
+               long limit = Long.parseLong(value) << shift;
+               if (limit > 0) {
+                  return limit;
+               }
+            } catch (NumberFormatException nfe) {
+               // fall back to the default below
+            }
+         }
+      }
+      return Runtime.getRuntime().maxMemory();
+   }
+   
+   /**
+    * Copies the pixels in src into dest, starting at dest's current position.
+    * Advances the position of dest, but leaves src untouched.
+    * Works for the Byte-, Short-, and IntBuffers used by Micro-Manager images.
+    * 
+    * @param src pixels of a single image
+    * @param dest target buffer, should be in native byte order
+    */
+   public static void copy(final Buffer src, final ByteBuffer dest) {
+      if (src instanceof ByteBuffer) {
+         ByteBuffer s = ((ByteBuffer) src).duplicate();
+         s.rewind();
+         dest.put(s);
+      } else if (src instanceof ShortBuffer) {
+         ShortBuffer s = ((ShortBuffer) src).duplicate();
+         s.rewind();
+         dest.asShortBuffer().put(s);
+         dest.position(dest.position() + 2 * s.capacity());
+      } else if (src instanceof IntBuffer) {
+         IntBuffer s = ((IntBuffer) src).duplicate();
+         s.rewind();
+         dest.asIntBuffer().put(s);
+         dest.position(dest.position() + 4 * s.capacity());
+      } else {
+         throw new IllegalArgumentException("Unsupported buffer type: " + 
+                 src.getClass().getName());
+      }
+   }
+   
+}
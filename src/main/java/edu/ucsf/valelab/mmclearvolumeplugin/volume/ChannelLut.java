@@ -0,0 +1,122 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Look-up table that maps 16-bit pixel values of a single channel onto 8 
+ * bits.  The table is linear over a window somewhat wider than the contrast
+ * range it was built for, so that small contrast changes can be handled by 
+ * the renderer's transfer function range rather than by rebuilding the table
+ * (and re-reducing the data).
+ * Immutable, a new table is built when the contrast changes substantially.
+ * 
+ * @author nico
+ */
+public final class ChannelLut {
+   
+   // fraction of the contrast range added on both sides of the window
+   private static final double MARGIN = 0.25;
+   
+   private final int min_;
+   private final int max_;
+   // highest pixel value the data can have
+   private final int limit_;
+   private final byte[] table_;
+   
+   private ChannelLut(int min, int max, int limit) {
+      min_ = min;
+      max_ = max;
+      limit_ = limit;
+      table_ = new byte[1 << 16];
+      final double scale = 255.0 / (max_ - min_);
+      for (int i = 0; i < table_.length; i++) {
+         int v = (int) Math.round((i - min_) * scale);
+         table_[i] = (byte) Math.max(0, Math.min(255, v));
+      }
+   }
+   
+   /**
+    * Builds a table for the given contrast range.
+    * @param min lowest displayed pixel value
+    * @param max highest displayed pixel value
+    * @param maxValue maximum pixel value of the data (i.e., 2^bitDepth)
+    * @return new table
+    */
+   public static ChannelLut build(int min, int max, int maxValue) {
+      final int limit = maxValue - 1;
+      min = clamp(min, limit);
+      max = clamp(max, limit);
+      if (max <= min) {
+         max = min + 1;
+      }
+      int margin = (int) Math.round((max - min) * MARGIN);
+      int lo = Math.max(0, min - margin);
+      int hi = Math.min(limit, max + margin);
+      if (hi <= lo) {
+         hi = lo + 1;
+      }
+      return new ChannelLut(lo, hi, limit);
+   }
+   
+   private static int clamp(int value, int limit) {
+      return Math.max(0, Math.min(limit, value));
+   }
+   
+   /**
+    * Whether this table can still be used for the given contrast range, 
+    * i.e., the range falls within the table's window, and does not use so 
+    * little of it that too much precision would be lost.
+    * The range is first clamped to the values the data can have, as it is 
+    * when building a table.
+    */
+   public boolean covers(int min, int max) {
+      min = clamp(min, limit_);
+      max = clamp(max, limit_);
+      return min >= min_ && max <= max_ && 
+              (long) (max - min) * 3 >= (max_ - min_);
+   }
+   
+   /**
+    * Position of a pixel value in the 8-bit output, from 0 to 1.
+    * Used to set the renderer's transfer function range.
+    */
+   public float normalize(int value) {
+      return (float) (value - min_) / (float) (max_ - min_);
+   }
+   
+   /**
+    * Maps a single 16-bit pixel value.
+    */
+   public byte map(int value) {
+      return table_[value & 0xFFFF];
+   }
+   
+   /**
+    * Maps all pixels in src and appends them to dest.
+    * @param src 16-bit pixels, left untouched
+    * @param dest target, advanced by the number of pixels in src
+    */
+   public void reduce(final ShortBuffer src, final ByteBuffer dest) {
+      final int n = src.capacity();
+      for (int i = 0; i < n; i++) {
+         dest.put(table_[src.get(i) & 0xFFFF]);
+      }
+   }
+   
+}
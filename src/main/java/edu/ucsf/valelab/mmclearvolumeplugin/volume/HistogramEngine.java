@@ -0,0 +1,439 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.micromanager.display.HistogramData;
+
+/**
+ * Calculates histograms over all z planes of a volume (or over the part 
+ * of it within given bounds).  Planes are divided over the threads of an 
+ * executor, each of which fills its own bins.  The bins are merged 
+ * afterwards.
+ * Histograms are cached per time point, stage position and channel, so 
+ * that asking again (for instance with a different percentage of outliers
+ * to ignore) is free.
+ * During acquisition, histograms can also be accumulated plane by plane, 
+ * so that they are ready as soon as the last plane of a stack arrives.
+ * 
+ * @author nico
+ */
+public class HistogramEngine {
+   
+   /**
+    * Provides the z planes of a single channel, null where missing.
+    */
+   public interface PlaneSource {
+      Buffer[] getPlanes(int timePoint, int position, int ch);
+   }
+   
+   private static final int MAX_CACHED = 64;
+   
+   private final PlaneSource source_;
+   private final ExecutorService executor_;
+   private final int nrTasks_;
+   private final Map<VolumeKey, Histogram> cache_;
+   // histograms of stacks that are still being acquired, guarded by cache_
+   private final Map<VolumeKey, Accumulator> partial_;
+   
+   /**
+    * @param source provides pixel data
+    * @param executor threads to use
+    * @param nrTasks number of parts a volume is divided into
+    */
+   public HistogramEngine(PlaneSource source, ExecutorService executor, 
+           int nrTasks) {
+      source_ = source;
+      executor_ = executor;
+      nrTasks_ = Math.max(1, nrTasks);
+      cache_ = new LinkedHashMap<VolumeKey, Histogram>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<VolumeKey, Histogram> e) {
+            return size() > MAX_CACHED;
+         }
+      };
+      partial_ = new LinkedHashMap<VolumeKey, Accumulator>() {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<VolumeKey, Accumulator> e) {
+            return size() > MAX_CACHED;
+         }
+      };
+   }
+   
+   /**
+    * Returns the histogram of the given volume, calculating it if it 
+    * is not cached.
+    * 
+    * @param key time point, stage position, and channel
+    * @param width width of a plane in pixels
+    * @param height height of a plane in pixels
+    * @param bitDepth bit depth of the data, determines the number of bins
+    * @param bounds xmin, xmax, ymin, ymax, zmin, zmax (max exclusive), 
+    *          or null for the complete volume
+    * @return histogram
+    */
+   public Histogram getHistogram(final VolumeKey key, final int width, 
+           final int height, final int bitDepth, final int[] bounds) {
+      Histogram cached = getCachedHistogram(key, bounds);
+      if (cached != null) {
+         return cached;
+      }
+      return calculate(key, source_.getPlanes(key.getTime(), 
+              key.getPosition(), key.getChannel()), width, height, bitDepth, 
+              bounds);
+   }
+   
+   /**
+    * As getHistogram, but calculates the histogram from planes that the 
+    * caller already read, rather than reading them again.
+    * 
+    * @param key time point, stage position, and channel
+    * @param planes z planes of the volume, null where missing
+    * @param width width of a plane in pixels
+    * @param height height of a plane in pixels
+    * @param bitDepth bit depth of the data, determines the number of bins
+    * @param bounds xmin, xmax, ymin, ymax, zmin, zmax (max exclusive), 
+    *          or null for the complete volume
+    * @return histogram
+    */
+   public Histogram getHistogram(final VolumeKey key, final Buffer[] planes,
+           final int width, final int height, final int bitDepth, 
+           final int[] bounds) {
+      Histogram cached = getCachedHistogram(key, bounds);
+      if (cached != null) {
+         return cached;
+      }
+      return calculate(key, planes, width, height, bitDepth, bounds);
+   }
+   
+   /**
+    * Returns the histogram of the given volume only if it is cached, never
+    * touches the pixel data.
+    * @param key time point, stage position, and channel
+    * @param bounds bounds the histogram was calculated for, see getHistogram
+    * @return cached histogram, or null
+    */
+   public Histogram getCachedHistogram(final VolumeKey key, 
+           final int[] bounds) {
+      synchronized (cache_) {
+         Histogram cached = cache_.get(key);
+         if (cached != null && Arrays.equals(cached.bounds_, bounds)) {
+            return cached;
+         }
+      }
+      return null;
+   }
+   
+   private Histogram calculate(final VolumeKey key, final Buffer[] planes,
+           final int width, final int height, final int bitDepth, 
+           final int[] bounds) {
+      final int[] b = bounds != null ? bounds : 
+              new int[] {0, width, 0, height, 0, planes.length};
+      final int nrBins = 1 << bitDepth;
+      final int nrZ = b[5] - b[4];
+      final int nrTasks = Math.min(nrTasks_, Math.max(1, nrZ));
+      
+      List<Future<int[]>> futures = new ArrayList<>(nrTasks);
+      for (int task = 0; task < nrTasks; task++) {
+         final int z0 = b[4] + task * nrZ / nrTasks;
+         final int z1 = b[4] + (task + 1) * nrZ / nrTasks;
+         futures.add(executor_.submit(() -> {
+            int[] bins = new int[nrBins];
+            for (int z = z0; z < z1; z++) {
+               if (planes[z] != null) {
+                  addToBins(planes[z], width, b, bins);
+               }
+            }
+            return bins;
+         }));
+      }
+      
+      final int[] bins = new int[nrBins];
+      for (int task = 0; task < nrTasks; task++) {
+         int[] partial;
+         try {
+            partial = futures.get(task).get();
+         } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            for (Future<int[]> future : futures) {
+               future.cancel(false);
+            }
+            return null;
+         } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+               throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+         }
+         for (int i = 0; i < nrBins; i++) {
+            bins[i] += partial[i];
+         }
+      }
+      
+      Histogram histogram = new Histogram(bins, bitDepth, bounds);
+      synchronized (cache_) {
+         cache_.put(key, histogram);
+      }
+      return histogram;
+   }
+   
+   private static void addToBins(final Buffer plane, final int width, 
+           final int[] b, final int[] bins) {
+      final int mask = bins.length - 1;
+      if (plane instanceof ShortBuffer) {
+         ShortBuffer pixels = (ShortBuffer) plane;
+         for (int y = b[2]; y < b[3]; y++) {
+            int index = y * width + b[0];
+            for (int x = b[0]; x < b[1]; x++) {
+               bins[pixels.get(index++) & mask]++;
+            }
+         }
+      } else if (plane instanceof ByteBuffer) {
+         ByteBuffer pixels = (ByteBuffer) plane;
+         for (int y = b[2]; y < b[3]; y++) {
+            int index = y * width + b[0];
+            for (int x = b[0]; x < b[1]; x++) {
+               bins[pixels.get(index++) & mask]++;
+            }
+         }
+      }
+   }
+   
+   /**
+    * Adds a newly arrived plane to the histogram of its volume.  Once all 
+    * planes of the volume were added, the histogram is cached as if it was
+    * calculated by getHistogram.  A plane that is written a second time 
+    * makes us give up on accumulating the histogram of its volume.
+    * 
+    * @param key time point, stage position, and channel of the plane
+    * @param z z index of the plane
+    * @param nrZ number of planes in the volume
+    * @param plane pixels
+    * @param width width of the plane
+    * @param height height of the plane
+    * @param bitDepth bit depth of the data
+    * @return true if this plane completed the histogram of its volume
+    */
+   public boolean addPlane(final VolumeKey key, final int z, final int nrZ, 
+           final Buffer plane, final int width, final int height, 
+           final int bitDepth) {
+      Accumulator accumulator;
+      synchronized (cache_) {
+         cache_.remove(key);
+         accumulator = partial_.get(key);
+         if (accumulator == null) {
+            accumulator = new Accumulator(1 << bitDepth, bitDepth);
+            partial_.put(key, accumulator);
+         }
+      }
+      Histogram complete = null;
+      synchronized (accumulator) {
+         if (accumulator.planes_.get(z) || accumulator.bitDepth_ != bitDepth) {
+            accumulator.broken_ = true;
+         }
+         if (!accumulator.broken_) {
+            addToBins(plane, width, new int[] {0, width, 0, height}, 
+                    accumulator.bins_);
+            accumulator.planes_.set(z);
+            if (accumulator.planes_.cardinality() >= nrZ) {
+               complete = new Histogram(accumulator.bins_, bitDepth, null);
+            }
+         }
+      }
+      synchronized (cache_) {
+         if (accumulator.broken_ || complete != null) {
+            partial_.remove(key);
+         }
+         if (complete != null) {
+            cache_.put(key, complete);
+         }
+      }
+      return complete != null;
+   }
+   
+   /**
+    * Returns the histogram of the complete volume if we have it, otherwise 
+    * the one accumulated from the planes that arrived so far.
+    * @return histogram or null if neither is available
+    */
+   public Histogram getAvailableHistogram(final VolumeKey key) {
+      Accumulator accumulator;
+      synchronized (cache_) {
+         Histogram cached = cache_.get(key);
+         if (cached != null && cached.bounds_ == null) {
+            return cached;
+         }
+         accumulator = partial_.get(key);
+      }
+      if (accumulator == null) {
+         return null;
+      }
+      synchronized (accumulator) {
+         if (accumulator.broken_) {
+            return null;
+         }
+         return new Histogram(accumulator.bins_.clone(), 
+                 accumulator.bitDepth_, null);
+      }
+   }
+   
+   /**
+    * Forget the histogram of a volume, for instance because one of its 
+    * planes was (re-)written.
+    */
+   public void invalidate(VolumeKey key) {
+      synchronized (cache_) {
+         cache_.remove(key);
+         partial_.remove(key);
+      }
+   }
+   
+   public void clear() {
+      synchronized (cache_) {
+         cache_.clear();
+         partial_.clear();
+      }
+   }
+   
+   /**
+    * Bins of a volume that is not yet complete, and the planes that went 
+    * into them.
+    */
+   private static final class Accumulator {
+      final int[] bins_;
+      final int bitDepth_;
+      final BitSet planes_ = new BitSet();
+      boolean broken_ = false;
+      
+      Accumulator(int nrBins, int bitDepth) {
+         bins_ = new int[nrBins];
+         bitDepth_ = bitDepth;
+      }
+   }
+   
+   /**
+    * Histogram with one bin per possible pixel value.
+    */
+   public static final class Histogram {
+      private final int[] bins_;
+      private final int bitDepth_;
+      private final int[] bounds_;
+      private final long numSamples_;
+      private final int min_, max_;
+      private final double mean_, stdDev_;
+      
+      Histogram(int[] bins, int bitDepth, int[] bounds) {
+         bins_ = bins;
+         bitDepth_ = bitDepth;
+         bounds_ = bounds == null ? null : bounds.clone();
+         long n = 0;
+         double sum = 0.0;
+         int min = -1;
+         int max = -1;
+         for (int i = 0; i < bins.length; i++) {
+            if (bins[i] > 0) {
+               if (min < 0) {
+                  min = i;
+               }
+               max = i;
+               n += bins[i];
+               sum += (double) i * bins[i];
+            }
+         }
+         numSamples_ = n;
+         min_ = Math.max(0, min);
+         max_ = Math.max(0, max);
+         mean_ = n > 0 ? sum / n : 0.0;
+         double squares = 0.0;
+         for (int i = min_; i <= max_; i++) {
+            squares += bins[i] * (i - mean_) * (i - mean_);
+         }
+         stdDev_ = n > 1 ? Math.sqrt(squares / (n - 1)) : 0.0;
+      }
+      
+      public int getBitDepth() {
+         return bitDepth_;
+      }
+      
+      public int getMin() {
+         return min_;
+      }
+      
+      public int getMax() {
+         return max_;
+      }
+      
+      /**
+       * Lowest value after ignoring the given percentage of lowest pixels.
+       */
+      public int getMinIgnoringOutliers(double percentage) {
+         final long limit = (long) (numSamples_ * percentage / 100.0);
+         long count = 0;
+         for (int i = min_; i < max_; i++) {
+            count += bins_[i];
+            if (count > limit) {
+               return i;
+            }
+         }
+         return max_;
+      }
+      
+      /**
+       * Highest value after ignoring the given percentage of highest pixels.
+       */
+      public int getMaxIgnoringOutliers(double percentage) {
+         final long limit = (long) (numSamples_ * percentage / 100.0);
+         long count = 0;
+         for (int i = max_; i > min_; i--) {
+            count += bins_[i];
+            if (count > limit) {
+               return i;
+            }
+         }
+         return min_;
+      }
+      
+      /**
+       * Converts to the Micro-Manager representation used by the inspector.
+       * @param percentage of outliers to ignore at either end
+       * @param binPower log2 of the number of bins to show
+       */
+      public HistogramData toHistogramData(double percentage, int binPower) {
+         final int shift = Math.max(0, bitDepth_ - binPower);
+         int[] shown = new int[bins_.length >> shift];
+         for (int i = 0; i < bins_.length; i++) {
+            shown[i >> shift] += bins_[i];
+         }
+         return new HistogramData(shown, (int) Math.min(Integer.MAX_VALUE, 
+                 numSamples_), min_, max_, 
+                 getMinIgnoringOutliers(percentage), 
+                 getMaxIgnoringOutliers(percentage), 
+                 (int) Math.round(mean_), stdDev_, bitDepth_, 1 << shift);
+      }
+   }
+   
+}
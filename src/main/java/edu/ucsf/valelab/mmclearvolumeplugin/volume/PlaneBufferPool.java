@@ -0,0 +1,238 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Shared pool of direct ByteBuffers the size of a single image plane.
+ * Allocating direct memory is slow and it is only returned to the system
+ * when the garbage collector gets around to it, so we hand out the same
+ * buffers over and over again instead.
+ * 
+ * There are two kinds of planes:
+ * - zero planes, filled with 0, that can be shared by everyone, and are 
+ *   handed out as read-only views
+ * - scratch planes, that belong to whoever acquired them until released
+ * 
+ * Both are reference counted.  The total number of bytes allocated by the
+ * pool never exceeds the configured maximum.  When a new plane is needed and
+ * the pool is full, unused planes are freed first.  If that is not enough, 
+ * an IllegalStateException is thrown.
+ * 
+ * @author nico
+ */
+public final class PlaneBufferPool {
+   
+   private static final PlaneBufferPool INSTANCE = 
+           new PlaneBufferPool(512L << 20);
+   
+   private final Map<Geometry, PooledPlane> zeroPlanes_ = new HashMap<>();
+   private final Map<Geometry, ArrayDeque<ByteBuffer>> freeScratchPlanes_ = 
+           new HashMap<>();
+   private final Map<ByteBuffer, PooledPlane> usedScratchPlanes_ = 
+           new IdentityHashMap<>();
+   private long maxBytes_;
+   private long allocatedBytes_ = 0;
+   
+   public static PlaneBufferPool getInstance() {
+      return INSTANCE;
+   }
+   
+   private PlaneBufferPool(long maxBytes) {
+      maxBytes_ = maxBytes;
+   }
+   
+   /**
+    * Returns a plane filled with zeros.  Every call should be balanced by a 
+    * call to releaseZeroPlane with the same dimensions.
+    * 
+    * @param width width of the plane in pixels
+    * @param height height of the plane in pixels
+    * @param bytesPerPixel bytes per pixel
+    * @return read-only view of the shared zero plane, positioned at 0
+    */
+   public synchronized ByteBuffer acquireZeroPlane(int width, int height, 
+           int bytesPerPixel) {
+      Geometry geometry = new Geometry(width, height, bytesPerPixel);
+      PooledPlane plane = zeroPlanes_.get(geometry);
+      if (plane == null) {
+         plane = new PooledPlane(geometry, allocate(geometry));
+         zeroPlanes_.put(geometry, plane);
+      }
+      plane.refCount_++;
+      ByteBuffer view = plane.buffer_.asReadOnlyBuffer();
+      view.order(plane.buffer_.order());
+      return view;
+   }
+   
+   public synchronized void releaseZeroPlane(int width, int height, 
+           int bytesPerPixel) {
+      PooledPlane plane = zeroPlanes_.get(
+              new Geometry(width, height, bytesPerPixel));
+      if (plane != null && plane.refCount_ > 0) {
+         plane.refCount_--;
+      }
+   }
+   
+   /**
+    * Returns a plane for exclusive use by the caller.  Its content is 
+    * undefined.  Release it with releaseScratchPlane when done.
+    * 
+    * @param width width of the plane in pixels
+    * @param height height of the plane in pixels
+    * @param bytesPerPixel bytes per pixel
+    * @return direct ByteBuffer in native byte order, positioned at 0
+    */
+   public synchronized ByteBuffer acquireScratchPlane(int width, int height,
+           int bytesPerPixel) {
+      Geometry geometry = new Geometry(width, height, bytesPerPixel);
+      ArrayDeque<ByteBuffer> free = freeScratchPlanes_.get(geometry);
+      ByteBuffer buffer = (free == null) ? null : free.poll();
+      if (buffer == null) {
+         buffer = allocate(geometry);
+      }
+      buffer.clear();
+      PooledPlane plane = new PooledPlane(geometry, buffer);
+      plane.refCount_ = 1;
+      usedScratchPlanes_.put(buffer, plane);
+      return buffer;
+   }
+   
+   /**
+    * Drops a reference to a scratch plane.  When no references are left, 
+    * the plane returns to the pool.
+    * @param buffer scratch plane obtained from acquireScratchPlane
+    */
+   public synchronized void releaseScratchPlane(ByteBuffer buffer) {
+      PooledPlane plane = usedScratchPlanes_.get(buffer);
+      if (plane == null) {
+         return;
+      }
+      plane.refCount_--;
+      if (plane.refCount_ <= 0) {
+         usedScratchPlanes_.remove(buffer);
+         ArrayDeque<ByteBuffer> free = freeScratchPlanes_.get(plane.geometry_);
+         if (free == null) {
+            free = new ArrayDeque<>();
+            freeScratchPlanes_.put(plane.geometry_, free);
+         }
+         free.push(buffer);
+      }
+   }
+   
+   public synchronized void setMaxBytes(long maxBytes) {
+      maxBytes_ = maxBytes;
+      freeUnused(0);
+   }
+   
+   public synchronized long getMaxBytes() {
+      return maxBytes_;
+   }
+   
+   public synchronized long getAllocatedBytes() {
+      return allocatedBytes_;
+   }
+   
+   private ByteBuffer allocate(Geometry geometry) {
+      long size = geometry.bytes();
+      if (allocatedBytes_ + size > maxBytes_) {
+         freeUnused(size);
+      }
+      if (allocatedBytes_ + size > maxBytes_) {
+         throw new IllegalStateException("Plane buffer pool exhausted: " + 
+                 (allocatedBytes_ >> 20) + " of " + (maxBytes_ >> 20) + 
+                 " MB in use");
+      }
+      allocatedBytes_ += size;
+      // allocateDirect guarantees that the buffer is filled with zeros
+      return BufferUtils.allocate(size);
+   }
+   
+   /**
+    * Drops unused planes until the requested number of bytes fits 
+    * within the maximum.
+    */
+   private void freeUnused(long needed) {
+      Iterator<ArrayDeque<ByteBuffer>> fit = 
+              freeScratchPlanes_.values().iterator();
+      while (allocatedBytes_ + needed > maxBytes_ && fit.hasNext()) {
+         ArrayDeque<ByteBuffer> free = fit.next();
+         while (allocatedBytes_ + needed > maxBytes_ && !free.isEmpty()) {
+            allocatedBytes_ -= free.pop().capacity();
+         }
+         if (free.isEmpty()) {
+            fit.remove();
+         }
+      }
+      Iterator<PooledPlane> zit = zeroPlanes_.values().iterator();
+      while (allocatedBytes_ + needed > maxBytes_ && zit.hasNext()) {
+         PooledPlane plane = zit.next();
+         if (plane.refCount_ == 0) {
+            allocatedBytes_ -= plane.buffer_.capacity();
+            zit.remove();
+         }
+      }
+   }
+   
+   private static final class PooledPlane {
+      final Geometry geometry_;
+      final ByteBuffer buffer_;
+      int refCount_ = 0;
+      
+      PooledPlane(Geometry geometry, ByteBuffer buffer) {
+         geometry_ = geometry;
+         buffer_ = buffer;
+      }
+   }
+   
+   private static final class Geometry {
+      final int width_;
+      final int height_;
+      final int bytesPerPixel_;
+      
+      Geometry(int width, int height, int bytesPerPixel) {
+         width_ = width;
+         height_ = height;
+         bytesPerPixel_ = bytesPerPixel;
+      }
+      
+      long bytes() {
+         return (long) width_ * height_ * bytesPerPixel_;
+      }
+      
+      @Override
+      public boolean equals(Object o) {
+         if (!(o instanceof Geometry)) {
+            return false;
+         }
+         Geometry other = (Geometry) o;
+         return width_ == other.width_ && height_ == other.height_ && 
+                 bytesPerPixel_ == other.bytesPerPixel_;
+      }
+      
+      @Override
+      public int hashCode() {
+         return 31 * (31 * width_ + height_) + bytesPerPixel_;
+      }
+   }
+   
+}
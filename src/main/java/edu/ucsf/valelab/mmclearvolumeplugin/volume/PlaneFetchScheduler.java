@@ -0,0 +1,178 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.micromanager.Studio;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.data.internal.DefaultImage;
+
+/**
+ * Reads the planes of a volume from a Datastore on a small pool of I/O 
+ * threads.  Reads are issued in the order in which the planes were 
+ * acquired (as given by the axis order in the summary metadata), which is
+ * the order in which file-backed Datastores wrote them to disk.  Results are
+ * handed back per channel, in z order.
+ * 
+ * @author nico
+ */
+public class PlaneFetchScheduler {
+   
+   private final Studio studio_;
+   private final Datastore store_;
+   private final ExecutorService ioExecutor_;
+   // true when all channels of a z plane were acquired before the next z
+   private final boolean channelsFirst_;
+   
+   /**
+    * @param studio used to build coordinates
+    * @param store Datastore to read from
+    * @param nrThreads number of concurrent reads
+    */
+   public PlaneFetchScheduler(Studio studio, Datastore store, int nrThreads) {
+      studio_ = studio;
+      store_ = store;
+      final AtomicInteger count = new AtomicInteger(0);
+      ioExecutor_ = Executors.newFixedThreadPool(nrThreads, (Runnable r) -> {
+         Thread t = new Thread(r, "ClearVolume plane reader " + 
+                 count.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      });
+      channelsFirst_ = channelsFirst(store.getSummaryMetadata());
+   }
+   
+   /**
+    * The axis order lists the axis that changed fastest during 
+    * acquisition first.
+    */
+   private static boolean channelsFirst(SummaryMetadata summary) {
+      if (summary == null || summary.getAxisOrder() == null) {
+         return false;
+      }
+      List<String> axisOrder = Arrays.asList(summary.getAxisOrder());
+      int channelIndex = axisOrder.indexOf(Coords.CHANNEL);
+      int zIndex = axisOrder.indexOf(Coords.Z);
+      return channelIndex >= 0 && zIndex >= 0 && channelIndex < zIndex;
+   }
+   
+   /**
+    * Reads all z planes of the given channels.  Blocks until all reads are 
+    * done.
+    * 
+    * @param timePoint time point to read
+    * @param position stage position to read
+    * @param channels channels to read
+    * @param nrZ number of z planes per channel
+    * @return pixel buffers, indexed by position in channels and z.  Missing 
+    *          planes are null.
+    */
+   public Buffer[][] fetch(final int timePoint, final int position, 
+           final int[] channels, final int nrZ) {
+      final int[] zPlanes = new int[nrZ];
+      for (int z = 0; z < nrZ; z++) {
+         zPlanes[z] = z;
+      }
+      return fetch(timePoint, position, channels, zPlanes);
+   }
+   
+   /**
+    * Reads the given z planes of the given channels.  Blocks until all reads
+    * are done.
+    * 
+    * @param timePoint time point to read
+    * @param position stage position to read
+    * @param channels channels to read
+    * @param zPlanes z planes to read, in ascending order
+    * @return pixel buffers, indexed by position in channels and in zPlanes.
+    *          Missing planes are null.
+    */
+   public Buffer[][] fetch(final int timePoint, final int position, 
+           final int[] channels, final int[] zPlanes) {
+      final int nrZ = zPlanes.length;
+      final Buffer[][] planes = new Buffer[channels.length][nrZ];
+      final int outer = channelsFirst_ ? nrZ : channels.length;
+      final int inner = channelsFirst_ ? channels.length : nrZ;
+      List<Future<?>> futures = new ArrayList<>(channels.length * nrZ);
+      // the pool takes tasks first in, first out, so submitting in disk 
+      // order keeps the reads (roughly) sequential
+      for (int o = 0; o < outer; o++) {
+         for (int i = 0; i < inner; i++) {
+            final int c = channelsFirst_ ? i : o;
+            final int z = channelsFirst_ ? o : i;
+            try {
+               futures.add(ioExecutor_.submit(() -> {
+                  planes[c][z] = read(timePoint, position, channels[c], 
+                          zPlanes[z]);
+               }));
+            } catch (RejectedExecutionException ree) {
+               // shut down (possibly while we were submitting), so nothing 
+               // will run the task: read on the calling thread instead
+               planes[c][z] = read(timePoint, position, channels[c], 
+                       zPlanes[z]);
+            }
+         }
+      }
+      boolean interrupted = false;
+      for (int f = 0; f < futures.size(); f++) {
+         try {
+            futures.get(f).get();
+         } catch (InterruptedException ie) {
+            // keep waiting, the results are written into our array
+            interrupted = true;
+            f--;
+         } catch (ExecutionException ee) {
+            // no interrupt, that would close the Datastore's FileChannels
+            for (Future<?> future : futures) {
+               future.cancel(false);
+            }
+            if (ee.getCause() instanceof RuntimeException) {
+               throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+      return planes;
+   }
+   
+   private Buffer read(final int timePoint, final int position, final int ch,
+           final int z) {
+      Coords coords = studio_.data().getCoordsBuilder().z(z).channel(ch).
+              time(timePoint).stagePosition(position).build();
+      // Bypass Micro-Manager api to get access to the ByteBuffers
+      DefaultImage image = (DefaultImage) store_.getImage(coords);
+      return image == null ? null : image.getPixelBuffer();
+   }
+   
+   public void shutdown() {
+      ioExecutor_.shutdown();
+   }
+   
+}
@@ -0,0 +1,105 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of which (channel, z) planes have arrived for each 
+ * (time point, stage position) stack, so that we know in constant time when
+ * a stack is complete, regardless of the order in which planes arrive.
+ * 
+ * @author nico
+ */
+public class StackCompletionIndex {
+   
+   private final int nrChannels_;
+   private final int nrZ_;
+   private final Map<Long, StackEntry> stacks_ = new HashMap<>();
+   
+   /**
+    * @param nrChannels number of channels in a complete stack
+    * @param nrZ number of z planes per channel in a complete stack
+    */
+   public StackCompletionIndex(int nrChannels, int nrZ) {
+      nrChannels_ = Math.max(1, nrChannels);
+      nrZ_ = Math.max(1, nrZ);
+   }
+   
+   /**
+    * Records the arrival of a plane.
+    * @return true if this plane completed its stack, false otherwise (also
+    *          when the plane was already known, or the stack was complete)
+    */
+   public synchronized boolean add(int time, int position, int channel, int z) {
+      if (channel < 0 || channel >= nrChannels_ || z < 0 || z >= nrZ_) {
+         return false;
+      }
+      long key = key(time, position);
+      StackEntry entry = stacks_.get(key);
+      if (entry == null) {
+         entry = new StackEntry(nrChannels_ * nrZ_);
+         stacks_.put(key, entry);
+      }
+      int bit = channel * nrZ_ + z;
+      if (entry.planes_.get(bit)) {
+         return false;
+      }
+      entry.planes_.set(bit);
+      entry.count_++;
+      return entry.count_ == nrChannels_ * nrZ_;
+   }
+   
+   public synchronized boolean isComplete(int time, int position) {
+      StackEntry entry = stacks_.get(key(time, position));
+      return entry != null && entry.count_ == nrChannels_ * nrZ_;
+   }
+   
+   public synchronized boolean contains(int time, int position, int channel, 
+           int z) {
+      StackEntry entry = stacks_.get(key(time, position));
+      return entry != null && channel >= 0 && channel < nrChannels_ && 
+              z >= 0 && z < nrZ_ && entry.planes_.get(channel * nrZ_ + z);
+   }
+   
+   /**
+    * @return number of planes that arrived for the given stack
+    */
+   public synchronized int getPlaneCount(int time, int position) {
+      StackEntry entry = stacks_.get(key(time, position));
+      return entry == null ? 0 : entry.count_;
+   }
+   
+   public synchronized void clear() {
+      stacks_.clear();
+   }
+   
+   private static long key(int time, int position) {
+      return ((long) time << 32) | (position & 0xFFFFFFFFL);
+   }
+   
+   private static final class StackEntry {
+      final BitSet planes_;
+      int count_ = 0;
+      
+      StackEntry(int nrPlanes) {
+         planes_ = new BitSet(nrPlanes);
+      }
+   }
+   
+}
@@ -0,0 +1,243 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of assembled single channel volumes, each held in one direct
+ * (off-heap) ByteBuffer.  When the total size exceeds the byte budget, the 
+ * least recently used volumes are evicted.
+ * All open caches (one per viewer) share a single budget, split evenly 
+ * between them, that never exceeds a fraction of the JVM's direct memory 
+ * limit, so that opening more viewers does not run the JVM out of direct 
+ * memory.
+ * Keeps track of hits and misses so that the budget can be tuned.
+ * 
+ * @author nico
+ */
+public class VolumeCache {
+   
+   // part of the direct memory limit that all caches together may use, the
+   // rest is left for the renderer, the plane pool, and Micro-Manager
+   public static final double DIRECT_MEMORY_FRACTION = 0.5;
+   private static final List<VolumeCache> CACHES = new ArrayList<>();
+   private static long sharedMaxBytes_ = 0;
+   
+   private final LinkedHashMap<VolumeKey, ByteBuffer> volumes_;
+   private final AtomicLong hits_ = new AtomicLong(0);
+   private final AtomicLong misses_ = new AtomicLong(0);
+   private long maxBytes_;
+   private long currentBytes_ = 0;
+   
+   /**
+    * @param maxBytes maximum number of bytes held by all caches together, 
+    *          capped at DIRECT_MEMORY_FRACTION of the direct memory limit
+    */
+   public VolumeCache(long maxBytes) {
+      // access ordered, so that iteration starts with the least recently used
+      volumes_ = new LinkedHashMap<>(64, 0.75f, true);
+      synchronized (VolumeCache.class) {
+         CACHES.add(this);
+      }
+      setSharedMaxBytes(maxBytes);
+   }
+   
+   /**
+    * Empties this cache, and hands its share of the budget to the other 
+    * caches.  The cache should no longer be used.
+    */
+   public void close() {
+      clear();
+      synchronized (VolumeCache.class) {
+         CACHES.remove(this);
+         rebalance();
+      }
+   }
+   
+   /**
+    * Looks up a volume.  
+    * @param key identifies the volume
+    * @return view of the cached volume, positioned at 0, or null when the 
+    *          volume is not in the cache.  Callers should not write into it.
+    */
+   public synchronized ByteBuffer get(VolumeKey key) {
+      ByteBuffer volume = volumes_.get(key);
+      if (volume == null) {
+         misses_.incrementAndGet();
+         return null;
+      }
+      hits_.incrementAndGet();
+      ByteBuffer view = volume.duplicate();
+      view.order(volume.order());
+      view.rewind();
+      return view;
+   }
+   
+   /**
+    * Adds a volume to the cache, evicting older volumes as needed.
+    * Volumes larger than the complete budget are not cached.
+    * The cache takes ownership of the buffer, callers should no longer 
+    * write into it.
+    * 
+    * @param key identifies the volume
+    * @param volume direct ByteBuffer containing the complete volume
+    */
+   public synchronized void put(VolumeKey key, ByteBuffer volume) {
+      long size = volume.capacity();
+      if (size > maxBytes_) {
+         return;
+      }
+      remove(key);
+      volumes_.put(key, volume);
+      currentBytes_ += size;
+      trim();
+   }
+   
+   public synchronized boolean contains(VolumeKey key) {
+      return volumes_.containsKey(key);
+   }
+   
+   public synchronized void remove(VolumeKey key) {
+      ByteBuffer old = volumes_.remove(key);
+      if (old != null) {
+         currentBytes_ -= old.capacity();
+      }
+   }
+   
+   /**
+    * Removes the volume identified by key, together with all regions of it
+    * cached at reduced resolution levels, for instance because one of its
+    * planes was (re-)written.
+    * @param key identifies the volume
+    */
+   public synchronized void removeAll(VolumeKey key) {
+      Iterator<Map.Entry<VolumeKey, ByteBuffer>> it = 
+              volumes_.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<VolumeKey, ByteBuffer> entry = it.next();
+         if (entry.getKey().sameVolume(key)) {
+            currentBytes_ -= entry.getValue().capacity();
+            it.remove();
+         }
+      }
+   }
+   
+   /**
+    * Removes all volumes of the given channel, for instance because the 
+    * way they were derived from the raw data changed.
+    * @param channel channel to be removed
+    */
+   public synchronized void removeChannel(int channel) {
+      Iterator<Map.Entry<VolumeKey, ByteBuffer>> it = 
+              volumes_.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<VolumeKey, ByteBuffer> entry = it.next();
+         if (entry.getKey().getChannel() == channel) {
+            currentBytes_ -= entry.getValue().capacity();
+            it.remove();
+         }
+      }
+   }
+   
+   public synchronized void clear() {
+      volumes_.clear();
+      currentBytes_ = 0;
+   }
+   
+   /**
+    * Changes the byte budget shared by all caches, evicts volumes if needed
+    * @param maxBytes new maximum number of bytes held by all caches 
+    *          together, capped at DIRECT_MEMORY_FRACTION of the direct 
+    *          memory limit
+    */
+   public void setMaxBytes(long maxBytes) {
+      setSharedMaxBytes(maxBytes);
+   }
+   
+   /**
+    * @return this cache's share of the budget
+    */
+   public synchronized long getMaxBytes() {
+      return maxBytes_;
+   }
+   
+   /**
+    * @return budget shared by all caches, after capping
+    */
+   public static synchronized long getSharedMaxBytes() {
+      return sharedMaxBytes_;
+   }
+   
+   private static synchronized void setSharedMaxBytes(long maxBytes) {
+      sharedMaxBytes_ = Math.min(maxBytes, (long) 
+              (BufferUtils.maxDirectMemory() * DIRECT_MEMORY_FRACTION));
+      rebalance();
+   }
+   
+   /**
+    * Splits the shared budget evenly.  Callers hold the class lock.
+    */
+   private static void rebalance() {
+      if (CACHES.isEmpty()) {
+         return;
+      }
+      final long share = sharedMaxBytes_ / CACHES.size();
+      for (VolumeCache cache : CACHES) {
+         cache.setShare(share);
+      }
+   }
+   
+   private synchronized void setShare(long maxBytes) {
+      maxBytes_ = maxBytes;
+      trim();
+   }
+   
+   public synchronized long getCurrentBytes() {
+      return currentBytes_;
+   }
+   
+   public long getHits() {
+      return hits_.get();
+   }
+   
+   public long getMisses() {
+      return misses_.get();
+   }
+   
+   @Override
+   public synchronized String toString() {
+      return "VolumeCache: " + volumes_.size() + " volumes, " + 
+              (currentBytes_ >> 20) + " of " + (maxBytes_ >> 20) + " MB, " + 
+              hits_.get() + " hits, " + misses_.get() + " misses";
+   }
+   
+   private void trim() {
+      Iterator<Map.Entry<VolumeKey, ByteBuffer>> it = 
+              volumes_.entrySet().iterator();
+      while (currentBytes_ > maxBytes_ && it.hasNext()) {
+         currentBytes_ -= it.next().getValue().capacity();
+         it.remove();
+      }
+   }
+   
+}
@@ -0,0 +1,91 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Builds reduced resolution versions of image planes by point sampling.
+ * Used to show something quickly while the full resolution volume is 
+ * still being read.
+ * 
+ * @author nico
+ */
+public class VolumeDownsampler {
+   
+   /**
+    * Size of a dimension after downsampling.
+    */
+   public static int reducedSize(int size, int factor) {
+      return Math.max(1, size / factor);
+   }
+   
+   /**
+    * Number of planes in a volume when only every factor-th plane is used.
+    */
+   public static int reducedDepth(int nrZ, int factor) {
+      return (nrZ + factor - 1) / factor;
+   }
+   
+   /**
+    * Takes every factor-th pixel in x and y from src and appends the 
+    * result to dest.
+    * 
+    * @param src pixels of a single image (Byte-, Short-, or IntBuffer)
+    * @param width width of the image in pixels
+    * @param height height of the image in pixels
+    * @param factor downsampling factor
+    * @param dest target buffer, in native byte order, advanced by the 
+    *          size of the reduced plane
+    */
+   public static void downsamplePlane(final Buffer src, final int width, 
+           final int height, final int factor, final ByteBuffer dest) {
+      final int w = reducedSize(width, factor);
+      final int h = reducedSize(height, factor);
+      if (src instanceof ByteBuffer) {
+         ByteBuffer s = (ByteBuffer) src;
+         for (int y = 0; y < h; y++) {
+            int row = y * factor * width;
+            for (int x = 0; x < w; x++) {
+               dest.put(s.get(row + x * factor));
+            }
+         }
+      } else if (src instanceof ShortBuffer) {
+         ShortBuffer s = (ShortBuffer) src;
+         for (int y = 0; y < h; y++) {
+            int row = y * factor * width;
+            for (int x = 0; x < w; x++) {
+               dest.putShort(s.get(row + x * factor));
+            }
+         }
+      } else if (src instanceof IntBuffer) {
+         IntBuffer s = (IntBuffer) src;
+         for (int y = 0; y < h; y++) {
+            int row = y * factor * width;
+            for (int x = 0; x < w; x++) {
+               dest.putInt(s.get(row + x * factor));
+            }
+         }
+      } else {
+         throw new IllegalArgumentException("Unsupported buffer type: " + 
+                 src.getClass().getName());
+      }
+   }
+   
+}
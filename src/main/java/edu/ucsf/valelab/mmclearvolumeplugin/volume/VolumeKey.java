@@ -0,0 +1,105 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.util.Arrays;
+
+/**
+ * Identifies the volume of a single channel at a given time point and 
+ * stage position, or a region of it at a reduced resolution level.  
+ * Immutable, so it can be used as a key in maps.
+ * 
+ * @author nico
+ */
+public final class VolumeKey {
+   private final int time_;
+   private final int position_;
+   private final int channel_;
+   private final int level_;
+   private final int[] region_;
+   
+   public VolumeKey(int time, int position, int channel) {
+      this(time, position, channel, 1, null);
+   }
+   
+   /**
+    * @param level downsampling factor, 1 for full resolution
+    * @param region voxel bounds at that level (xmin, xmax, ymin, ymax, zmin,
+    *          zmax), or null for the complete volume
+    */
+   public VolumeKey(int time, int position, int channel, int level, 
+           int[] region) {
+      time_ = time;
+      position_ = position;
+      channel_ = channel;
+      level_ = level;
+      region_ = region == null ? null : region.clone();
+   }
+   
+   public int getTime() {
+      return time_;
+   }
+   
+   public int getPosition() {
+      return position_;
+   }
+   
+   public int getChannel() {
+      return channel_;
+   }
+   
+   /**
+    * Whether other identifies (part of) the same volume, regardless of 
+    * resolution level and region.
+    */
+   public boolean sameVolume(VolumeKey other) {
+      return time_ == other.time_ && position_ == other.position_ && 
+              channel_ == other.channel_;
+   }
+   
+   @Override
+   public boolean equals(Object o) {
+      if (this == o) {
+         return true;
+      }
+      if (!(o instanceof VolumeKey)) {
+         return false;
+      }
+      VolumeKey other = (VolumeKey) o;
+      return sameVolume(other) && level_ == other.level_ && 
+              Arrays.equals(region_, other.region_);
+   }
+   
+   @Override
+   public int hashCode() {
+      int hash = 7;
+      hash = 31 * hash + time_;
+      hash = 31 * hash + position_;
+      hash = 31 * hash + channel_;
+      hash = 31 * hash + level_;
+      hash = 31 * hash + Arrays.hashCode(region_);
+      return hash;
+   }
+   
+   @Override
+   public String toString() {
+      String key = "t=" + time_ + ", p=" + position_ + ", c=" + channel_;
+      if (region_ != null) {
+         key += ", level=" + level_ + ", region=" + Arrays.toString(region_);
+      }
+      return key;
+   }
+}
@@ -0,0 +1,129 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import coremem.fragmented.FragmentedMemory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Assembles the volume for one time point and stage position on a worker 
+ * thread, so that it is ready by the time the viewer asks for it.
+ * Only a single volume is prefetched at any time.  Asking for a different
+ * volume than the one being prefetched discards the prefetched volume.
+ * 
+ * @author nico
+ */
+public class VolumePrefetcher {
+   
+   /**
+    * Builds the per-channel volumes for a given time point and position.
+    * Should return null when the volume is not (yet) complete, so that 
+    * partial volumes are never handed out later on.
+    */
+   public interface VolumeLoader {
+      FragmentedMemory[] load(int timePoint, int position);
+   }
+   
+   private final VolumeLoader loader_;
+   private final ExecutorService executor_;
+   private Future<FragmentedMemory[]> pending_;
+   private int pendingTimePoint_ = -1;
+   private int pendingPosition_ = -1;
+   
+   public VolumePrefetcher(final VolumeLoader loader) {
+      loader_ = loader;
+      executor_ = Executors.newSingleThreadExecutor((Runnable r) -> {
+         Thread t = new Thread(r, "ClearVolume volume prefetch thread");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+   
+   /**
+    * Starts assembling the given volume in the background.  
+    * Does nothing if that volume is already being prefetched.
+    * @param timePoint time point to be assembled
+    * @param position stage position to be assembled
+    */
+   public synchronized void prefetch(final int timePoint, final int position) {
+      if (timePoint < 0 || position < 0 || executor_.isShutdown()) {
+         return;
+      }
+      if (pending_ != null && pendingTimePoint_ == timePoint && 
+              pendingPosition_ == position) {
+         return;
+      }
+      discard();
+      pendingTimePoint_ = timePoint;
+      pendingPosition_ = position;
+      pending_ = executor_.submit(() -> loader_.load(timePoint, position));
+   }
+   
+   /**
+    * Returns the prefetched volume for the given time point and position, 
+    * waiting for the worker thread to finish if it is still busy with it.
+    * @param timePoint desired time point
+    * @param position desired stage position
+    * @return per-channel volumes, or null if this volume was not
+    *          prefetched (or turned out to be incomplete)
+    */
+   public FragmentedMemory[] take(final int timePoint, final int position) {
+      Future<FragmentedMemory[]> future;
+      synchronized (this) {
+         if (pending_ == null || pendingTimePoint_ != timePoint || 
+                 pendingPosition_ != position) {
+            return null;
+         }
+         future = pending_;
+         pending_ = null;
+         pendingTimePoint_ = -1;
+         pendingPosition_ = -1;
+      }
+      try {
+         return future.get();
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ee) {
+         // fall through, the caller will assemble the volume itself
+      }
+      return null;
+   }
+   
+   /**
+    * Forget about the prefetched volume, for instance because the data 
+    * underlying it changed.
+    */
+   public synchronized void discard() {
+      if (pending_ != null) {
+         // Do not interrupt, an interrupt closes the FileChannels used by 
+         // file-backed Datastores
+         pending_.cancel(false);
+         pending_ = null;
+      }
+      pendingTimePoint_ = -1;
+      pendingPosition_ = -1;
+   }
+   
+   public synchronized void shutdown() {
+      discard();
+      executor_.shutdown();
+   }
+   
+}
@@ -0,0 +1,77 @@
+
+package edu.ucsf.valelab.mmclearvolumeplugin.recorder;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author nico
+ */
+public class ExpandedVirtualStackTest {
+   
+   private static final long SECOND = 1000000000L;
+   
+   /**
+    * Remembers which slices were asked for.
+    */
+   private static class StoredStack extends ImageStack {
+      final List<Integer> requested_ = new ArrayList<>();
+      
+      StoredStack() {
+         super(4, 4);
+      }
+      
+      @Override
+      public ImageProcessor getProcessor(int n) {
+         requested_.add(n);
+         return null;
+      }
+   }
+   
+   private static FrameTimeline timeline() {
+      FrameTimeline timeline = new FrameTimeline();
+      timeline.addStored(0);
+      timeline.addRepeat(SECOND);
+      timeline.addStored(2 * SECOND);
+      return timeline;
+   }
+   
+   @Test
+   public void framesMapToStoredSlices() {
+      StoredStack stored = new StoredStack();
+      ExpandedVirtualStack stack = new ExpandedVirtualStack(stored, timeline());
+      assertEquals(3, stack.getSize());
+      for (int n = 1; n <= 3; n++) {
+         stack.getProcessor(n);
+      }
+      assertEquals(1, (int) stored.requested_.get(0));
+      assertEquals(1, (int) stored.requested_.get(1));
+      assertEquals(2, (int) stored.requested_.get(2));
+   }
+   
+   @Test
+   public void deleteSliceDropsFrame() {
+      StoredStack stored = new StoredStack();
+      ExpandedVirtualStack stack = new ExpandedVirtualStack(stored, timeline());
+      stack.deleteSlice(1);
+      assertEquals(2, stack.getSize());
+      // time base moved to the repeat, which is no longer a repeat
+      assertEquals(String.format("%.3f s", 0.0), stack.getSliceLabel(1));
+      assertEquals(String.format("%.3f s", 1.0), stack.getSliceLabel(2));
+      stack.getProcessor(1);
+      stack.getProcessor(2);
+      assertEquals(1, (int) stored.requested_.get(0));
+      assertEquals(2, (int) stored.requested_.get(1));
+   }
+   
+   @Test(expected = IllegalArgumentException.class)
+   public void deleteSliceOutOfRange() {
+      new ExpandedVirtualStack(new StoredStack(), timeline()).deleteSlice(4);
+   }
+   
+}
@@ -0,0 +1,98 @@
+
+package edu.ucsf.valelab.mmclearvolumeplugin.recorder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author nico
+ */
+public class FrameTimelineTest {
+   
+   private static final long SECOND = 1000000000L;
+   
+   private static String label(double seconds, boolean repeat) {
+      String label = String.format("%.3f s", seconds);
+      return repeat ? label + " (repeat)" : label;
+   }
+   
+   @Test
+   public void repeatsShowLastStoredSlice() {
+      FrameTimeline timeline = new FrameTimeline();
+      timeline.addStored(0);
+      timeline.addRepeat(SECOND);
+      timeline.addStored(2 * SECOND);
+      timeline.addRepeat(3 * SECOND);
+      timeline.addRepeat(4 * SECOND);
+      assertEquals(5, timeline.size());
+      assertEquals(2, timeline.getNrStored());
+      int[] slices = {0, 0, 1, 1, 1};
+      boolean[] repeats = {false, true, false, true, true};
+      for (int frame = 0; frame < slices.length; frame++) {
+         assertEquals(slices[frame], timeline.getSlice(frame));
+         assertEquals(repeats[frame], timeline.isRepeat(frame));
+         assertEquals(frame * SECOND, timeline.getTimeNs(frame));
+         assertEquals(label(frame, repeats[frame]), timeline.getLabel(frame));
+      }
+   }
+   
+   @Test(expected = IllegalStateException.class)
+   public void nothingToRepeat() {
+      new FrameTimeline().addRepeat(0);
+   }
+   
+   @Test
+   public void removeFrameKeepsStoredSlices() {
+      FrameTimeline timeline = new FrameTimeline();
+      timeline.addStored(0);
+      timeline.addStored(SECOND);
+      timeline.addStored(2 * SECOND);
+      timeline.remove(1);
+      assertEquals(2, timeline.size());
+      assertEquals(3, timeline.getNrStored());
+      assertEquals(0, timeline.getSlice(0));
+      assertEquals(2, timeline.getSlice(1));
+      assertEquals(2 * SECOND, timeline.getTimeNs(1));
+      // repeats still refer to the last stored slice
+      timeline.addRepeat(3 * SECOND);
+      assertEquals(2, timeline.getSlice(2));
+      assertTrue(timeline.isRepeat(2));
+   }
+   
+   @Test
+   public void removeFirstFrameMovesTimeBase() {
+      FrameTimeline timeline = new FrameTimeline();
+      timeline.addStored(SECOND);
+      timeline.addStored(3 * SECOND);
+      timeline.addRepeat(4 * SECOND);
+      timeline.remove(0);
+      assertEquals(label(0.0, false), timeline.getLabel(0));
+      assertEquals(label(1.0, true), timeline.getLabel(1));
+   }
+   
+   @Test
+   public void isRepeatAfterRemoval() {
+      FrameTimeline timeline = new FrameTimeline();
+      timeline.addStored(0);
+      timeline.addStored(SECOND);
+      timeline.addRepeat(2 * SECOND);
+      // the repeat now follows a different slice
+      timeline.remove(1);
+      assertFalse(timeline.isRepeat(1));
+      
+      timeline = new FrameTimeline();
+      timeline.addStored(0);
+      timeline.addRepeat(SECOND);
+      timeline.addRepeat(2 * SECOND);
+      // still follows a frame showing the same slice
+      timeline.remove(1);
+      assertTrue(timeline.isRepeat(1));
+      // the first frame is never a repeat
+      timeline.remove(0);
+      assertFalse(timeline.isRepeat(0));
+   }
+   
+}
@@ -0,0 +1,143 @@
+
+package edu.ucsf.valelab.mmclearvolumeplugin.recorder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author nico
+ */
+public class RecorderUtilsTest {
+   
+   // odd, so that rows do not line up with longs when hashing
+   private static final int WIDTH = 37;
+   
+   private static ByteBuffer randomFrame(int width, int height, long seed) {
+      byte[] bytes = new byte[width * height * 3];
+      new Random(seed).nextBytes(bytes);
+      ByteBuffer frame = ByteBuffer.allocateDirect(bytes.length);
+      frame.put(bytes);
+      frame.rewind();
+      return frame;
+   }
+   
+   /**
+    * Straightforward conversion, bottom row of the frame first.
+    */
+   private static int[] expected(int width, int height, ByteBuffer frame) {
+      int[] pixels = new int[width * height];
+      for (int row = 0; row < height; row++) {
+         for (int col = 0; col < width; col++) {
+            int index = ((height - 1 - row) * width + col) * 3;
+            pixels[row * width + col] = 0xFF000000 
+                    | ((frame.get(index) & 0xFF) << 16)
+                    | ((frame.get(index + 1) & 0xFF) << 8)
+                    | (frame.get(index + 2) & 0xFF);
+         }
+      }
+      return pixels;
+   }
+   
+   @Test
+   public void singleTaskFlipsRows() {
+      final int height = 5;
+      ByteBuffer frame = randomFrame(WIDTH, height, 1);
+      int[] pixels = new int[WIDTH * height];
+      RecorderUtils.convertRGBToARGB(WIDTH, height, frame, pixels, 1);
+      assertArrayEquals(expected(WIDTH, height, frame), pixels);
+   }
+   
+   @Test
+   public void parallelMatchesSingleTask() {
+      for (int n = 1; n <= 4; n++) {
+         // rows do not divide evenly over the tasks
+         final int height = RecorderUtils.MIN_ROWS_PER_TASK * n + 1;
+         ByteBuffer frame = randomFrame(WIDTH, height, n);
+         int[] single = new int[WIDTH * height];
+         RecorderUtils.convertRGBToARGB(WIDTH, height, frame, single, 1);
+         for (int nrTasks = 2; nrTasks <= n + 3; nrTasks++) {
+            int[] parallel = new int[WIDTH * height];
+            RecorderUtils.convertRGBToARGB(WIDTH, height, frame, parallel, 
+                    nrTasks);
+            assertArrayEquals("height " + height + ", " + nrTasks + " tasks",
+                    single, parallel);
+         }
+      }
+   }
+   
+   @Test
+   public void publicConversionMatchesExpected() {
+      final int height = RecorderUtils.MIN_ROWS_PER_TASK * 3 + 1;
+      ByteBuffer frame = randomFrame(WIDTH, height, 7);
+      int[] pixels = new int[WIDTH * height];
+      RecorderUtils.convertRGBToARGB(WIDTH, height, frame, pixels);
+      assertArrayEquals(expected(WIDTH, height, frame), pixels);
+   }
+   
+   @Test
+   public void rowBufferIsReusedAcrossWidths() {
+      // the per-thread row buffer first grows, and is then reused for a 
+      // narrower frame
+      ByteBuffer wide = randomFrame(WIDTH * 2, 3, 3);
+      int[] widePixels = new int[WIDTH * 2 * 3];
+      RecorderUtils.convertRGBToARGB(WIDTH * 2, 3, wide, widePixels, 1);
+      ByteBuffer narrow = randomFrame(WIDTH, 3, 4);
+      int[] narrowPixels = new int[WIDTH * 3];
+      RecorderUtils.convertRGBToARGB(WIDTH, 3, narrow, narrowPixels, 1);
+      assertArrayEquals(expected(WIDTH, 3, narrow), narrowPixels);
+   }
+   
+   @Test
+   public void conversionLeavesPositionUnchanged() {
+      final int height = RecorderUtils.MIN_ROWS_PER_TASK * 2 + 1;
+      ByteBuffer frame = randomFrame(WIDTH, height, 5);
+      frame.position(11);
+      int[] pixels = new int[WIDTH * height];
+      RecorderUtils.convertRGBToARGB(WIDTH, height, frame, pixels, 3);
+      assertEquals(11, frame.position());
+      frame.rewind();
+      assertArrayEquals(expected(WIDTH, height, frame), pixels);
+   }
+   
+   @Test
+   public void hashLeavesPositionUnchanged() {
+      ByteBuffer frame = randomFrame(WIDTH, 9, 6);
+      frame.position(13);
+      RecorderUtils.hashFrame(WIDTH, 9, frame, 1);
+      RecorderUtils.hashFrame(WIDTH, 9, frame, 4);
+      assertEquals(13, frame.position());
+   }
+   
+   @Test
+   public void hashDetectsChangedByte() {
+      ByteBuffer frame = randomFrame(WIDTH, 9, 8);
+      ByteBuffer copy = randomFrame(WIDTH, 9, 8);
+      assertEquals(RecorderUtils.hashFrame(WIDTH, 9, frame, 1), 
+              RecorderUtils.hashFrame(WIDTH, 9, copy, 1));
+      // the last byte is past the last whole long
+      final int last = WIDTH * 9 * 3 - 1;
+      copy.put(last, (byte) (copy.get(last) + 1));
+      assertNotEquals(RecorderUtils.hashFrame(WIDTH, 9, frame, 1), 
+              RecorderUtils.hashFrame(WIDTH, 9, copy, 1));
+   }
+   
+   @Test
+   public void sampledHashOnlyUsesSampledPixels() {
+      final int step = 4;
+      ByteBuffer frame = randomFrame(WIDTH, 9, 9);
+      ByteBuffer copy = randomFrame(WIDTH, 9, 9);
+      // pixel (1, 1) is not sampled, pixel (0, step) is
+      copy.put((WIDTH + 1) * 3, (byte) (copy.get((WIDTH + 1) * 3) + 1));
+      assertEquals(RecorderUtils.hashFrame(WIDTH, 9, frame, step), 
+              RecorderUtils.hashFrame(WIDTH, 9, copy, step));
+      copy.put(step * 3, (byte) (copy.get(step * 3) + 1));
+      assertNotEquals(RecorderUtils.hashFrame(WIDTH, 9, frame, step), 
+              RecorderUtils.hashFrame(WIDTH, 9, copy, step));
+   }
+   
+}
@@ -0,0 +1,53 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author nico
+ */
+public class ChannelLutTest {
+   
+   private static final int MAX_VALUE = 1 << 16;
+   
+   @Test
+   public void defaultRangeCoversItself() {
+      // the default contrast max is the maximum value, one above any pixel
+      ChannelLut lut = ChannelLut.build(0, MAX_VALUE, MAX_VALUE);
+      assertTrue(lut.covers(0, MAX_VALUE));
+      assertTrue(lut.covers(0, MAX_VALUE - 1));
+   }
+   
+   @Test
+   public void narrowRangeIsNotCovered() {
+      ChannelLut lut = ChannelLut.build(0, MAX_VALUE, MAX_VALUE);
+      assertFalse(lut.covers(100, 200));
+   }
+   
+   @Test
+   public void mapsContrastRange() {
+      ChannelLut lut = ChannelLut.build(1000, 2000, MAX_VALUE);
+      assertTrue(lut.covers(1000, 2000));
+      assertEquals(0, lut.map(0));
+      assertEquals((byte) 255, lut.map(MAX_VALUE - 1));
+   }
+   
+}
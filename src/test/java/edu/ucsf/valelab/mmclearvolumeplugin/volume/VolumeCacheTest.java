@@ -0,0 +1,186 @@
+/**
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2017 
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin.volume;
+
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * All caches share one budget, so every test closes the caches it opens.
+ * 
+ * @author nico
+ */
+public class VolumeCacheTest {
+   
+   private static ByteBuffer volume(int size) {
+      return ByteBuffer.allocateDirect(size);
+   }
+   
+   private static VolumeKey key(int t) {
+      return new VolumeKey(t, 0, 0);
+   }
+   
+   @Test
+   public void evictsLeastRecentlyUsed() {
+      VolumeCache cache = new VolumeCache(300);
+      try {
+         cache.put(key(0), volume(100));
+         cache.put(key(1), volume(100));
+         cache.put(key(2), volume(100));
+         // 0 is now used more recently than 1
+         assertNotNull(cache.get(key(0)));
+         cache.put(key(3), volume(100));
+         assertFalse(cache.contains(key(1)));
+         assertTrue(cache.contains(key(0)));
+         assertTrue(cache.contains(key(2)));
+         assertTrue(cache.contains(key(3)));
+         assertEquals(300, cache.getCurrentBytes());
+      } finally {
+         cache.close();
+      }
+   }
+   
+   @Test
+   public void countsHitsAndMisses() {
+      VolumeCache cache = new VolumeCache(300);
+      try {
+         cache.put(key(0), volume(100));
+         ByteBuffer view = cache.get(key(0));
+         assertEquals(0, view.position());
+         assertNull(cache.get(key(1)));
+         assertEquals(1, cache.getHits());
+         assertEquals(1, cache.getMisses());
+      } finally {
+         cache.close();
+      }
+   }
+   
+   @Test
+   public void doesNotCacheVolumeOverBudget() {
+      VolumeCache cache = new VolumeCache(300);
+      try {
+         cache.put(key(0), volume(100));
+         cache.put(key(1), volume(301));
+         assertFalse(cache.contains(key(1)));
+         // nothing was evicted to make room
+         assertTrue(cache.contains(key(0)));
+         assertEquals(100, cache.getCurrentBytes());
+      } finally {
+         cache.close();
+      }
+   }
+   
+   @Test
+   public void replacingVolumeKeepsCountRight() {
+      VolumeCache cache = new VolumeCache(300);
+      try {
+         cache.put(key(0), volume(100));
+         cache.put(key(0), volume(200));
+         assertEquals(200, cache.getCurrentBytes());
+      } finally {
+         cache.close();
+      }
+   }
+   
+   @Test
+   public void removeChannelRemovesAllOfIt() {
+      VolumeCache cache = new VolumeCache(1000);
+      try {
+         cache.put(new VolumeKey(0, 0, 0), volume(100));
+         cache.put(new VolumeKey(1, 0, 0), volume(100));
+         cache.put(new VolumeKey(0, 0, 0, 2, new int[] {0, 1, 0, 1, 0, 1}), 
+                 volume(100));
+         cache.put(new VolumeKey(0, 0, 1), volume(100));
+         cache.removeChannel(0);
+         assertEquals(100, cache.getCurrentBytes());
+         assertTrue(cache.contains(new VolumeKey(0, 0, 1)));
+      } finally {
+         cache.close();
+      }
+   }
+   
+   @Test
+   public void removeAllRemovesRegionsOfTheVolume() {
+      VolumeCache cache = new VolumeCache(1000);
+      try {
+         final int[] region = {0, 256, 0, 256, 0, 256};
+         cache.put(new VolumeKey(0, 0, 0), volume(100));
+         cache.put(new VolumeKey(0, 0, 0, 2, region), volume(100));
+         cache.put(new VolumeKey(0, 0, 0, 4, region), volume(100));
+         cache.put(new VolumeKey(1, 0, 0, 2, region), volume(100));
+         cache.put(new VolumeKey(0, 1, 0), volume(100));
+         cache.removeAll(new VolumeKey(0, 0, 0));
+         assertEquals(200, cache.getCurrentBytes());
+         assertTrue(cache.contains(new VolumeKey(1, 0, 0, 2, region)));
+         assertTrue(cache.contains(new VolumeKey(0, 1, 0)));
+         // remove only takes out the exact key
+         cache.remove(new VolumeKey(1, 0, 0));
+         assertEquals(200, cache.getCurrentBytes());
+      } finally {
+         cache.close();
+      }
+   }
+   
+   @Test
+   public void budgetIsSplitBetweenCaches() {
+      VolumeCache first = new VolumeCache(1000);
+      VolumeCache second = null;
+      try {
+         assertEquals(1000, first.getMaxBytes());
+         first.put(key(0), volume(300));
+         first.put(key(1), volume(300));
+         second = new VolumeCache(1000);
+         assertEquals(1000, VolumeCache.getSharedMaxBytes());
+         assertEquals(500, first.getMaxBytes());
+         assertEquals(500, second.getMaxBytes());
+         // the first cache was trimmed to its share
+         assertEquals(300, first.getCurrentBytes());
+         assertFalse(first.contains(key(0)));
+         // a new budget applies to all caches
+         second.setMaxBytes(2000);
+         assertEquals(1000, first.getMaxBytes());
+         assertEquals(1000, second.getMaxBytes());
+         second.close();
+         second = null;
+         assertEquals(2000, first.getMaxBytes());
+      } finally {
+         first.close();
+         if (second != null) {
+            second.close();
+         }
+      }
+   }
+   
+   @Test
+   public void budgetIsCappedByDirectMemory() {
+      VolumeCache cache = new VolumeCache(Long.MAX_VALUE);
+      try {
+         final long cap = (long) (BufferUtils.maxDirectMemory() * 
+                 VolumeCache.DIRECT_MEMORY_FRACTION);
+         assertEquals(cap, VolumeCache.getSharedMaxBytes());
+         assertEquals(cap, cache.getMaxBytes());
+         assertTrue(cap < BufferUtils.maxDirectMemory());
+      } finally {
+         cache.close();
+      }
+   }
+   
+}